@@ -0,0 +1,248 @@
+package mandelbrot.bench;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mandelbrot.Calculator;
+import mandelbrot.Settings;
+import mandelbrot.Snapshot;
+import mandelbrot.SnapshotProvider;
+import mandelbrot.formula.Formula;
+import mandelbrot.formula.Kernel;
+
+/**
+ * Renders a fixed set of scenes and fails when one allocates more bytes per pixel
+ * than its budget, so that allocation does not creep back into the kernels and
+ * the render paths. Kernels are measured on the calling thread, whole renders
+ * across all threads. Run with {@code gradle allocationCheck}.
+ * <p>
+ * The double kernels may allocate next to nothing. The other budgets sit 10-15%
+ * above what their scenes measure, which varies by well under 1% between runs,
+ * so lower a budget along with any change that removes allocation.
+ */
+public final class AllocationCheck {
+	private static final int WARMUP_ROUNDS = 3;
+
+	/**
+	 * Keeps the kernel results alive so that the iterations are not optimised away.
+	 */
+	static volatile double sink;
+
+	private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private AllocationCheck() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("Thread allocation measurement is not supported by this JVM");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		List<Scene> scenes = new ArrayList<>();
+		for (Formula formula : Formula.presets()) {
+			scenes.add(Scene.kernel(formula.getName() + " kernel, double", formula, true, 0.1));
+		}
+		scenes.add(Scene.kernel("Mandelbrot kernel, arbitrary", Formula.MANDELBROT, false, 145_000));
+		scenes.add(Scene.render("default view", "-2.5", "-2", "1.5", "2", 400, s -> {
+		}, 43));
+		scenes.add(Scene.render("boundary view", "-0.7454", "0.1130", "-0.7446", "0.1138", 400, s -> {
+		}, 43));
+		scenes.add(Scene.render("histogram colouring", "-0.7454", "0.1130", "-0.7446", "0.1138", 400,
+				s -> s.histogramColoring = true, 72));
+		scenes.add(Scene.render("arbitrary precision", "-0.7454", "0.1130", "-0.7446", "0.1138", 32,
+				s -> s.doublePrecision = false, 220_000));
+		scenes.add(Scene.move("pan", 400, provider -> provider.pan(40, 20), 43));
+		scenes.add(Scene.move("redraw", 400, SnapshotProvider::repaint, 43));
+
+		System.out.printf("%-32s %10s %12s %12s %6s%n", "scene", "pixels", "bytes/pixel", "budget", "GCs");
+		boolean failed = false;
+		Calculator calculator = new Calculator();
+		for (Scene scene : scenes) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				scene.run(calculator);
+			}
+			long gcs = collectionCount();
+			Map<Long, Long> before = allocatedBytes();
+			long pixels = scene.run(calculator);
+			long bytes = scene.onCallingThread ? allocatedBytes(Thread.currentThread().getId(), before)
+					: allocatedSince(before);
+			gcs = collectionCount() - gcs;
+
+			double perPixel = bytes / (double) pixels;
+			boolean over = perPixel > scene.budget;
+			failed |= over;
+			System.out.printf("%-32s %10d %12.2f %12.2f %6d%s%n", scene.name, pixels, perPixel, scene.budget, gcs,
+					over ? "  OVER BUDGET" : "");
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	private static Map<Long, Long> allocatedBytes() {
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = threads.getThreadAllocatedBytes(ids);
+		Map<Long, Long> allocated = new HashMap<>();
+		for (int i = 0; i < ids.length; i++) {
+			allocated.put(ids[i], bytes[i]);
+		}
+		return allocated;
+	}
+
+	private static long allocatedSince(Map<Long, Long> before) {
+		long total = 0;
+		for (Map.Entry<Long, Long> thread : allocatedBytes().entrySet()) {
+			if (thread.getValue() >= 0) {
+				total += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+			}
+		}
+		return total;
+	}
+
+	private static long allocatedBytes(long threadId, Map<Long, Long> before) {
+		return threads.getThreadAllocatedBytes(threadId) - before.get(threadId);
+	}
+
+	private static long collectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	private interface Customizer {
+		void apply(Settings settings);
+	}
+
+	private interface Move {
+		void apply(SnapshotProvider provider);
+	}
+
+	private static final class Scene {
+		final String name;
+		final boolean onCallingThread;
+		final double budget;
+		final Settings settings = new Settings();
+		BigDecimal x0 = new BigDecimal("-2.5");
+		BigDecimal y0 = new BigDecimal("-2");
+		BigDecimal x1 = new BigDecimal("1.5");
+		BigDecimal y1 = new BigDecimal("2");
+		int size;
+		Move move;
+		SnapshotProvider provider;
+
+		private Scene(String name, boolean onCallingThread, double budget) {
+			this.name = name;
+			this.onCallingThread = onCallingThread;
+			this.budget = budget;
+			settings.maxIter = 1000;
+			settings.regenerateColors();
+		}
+
+		/**
+		 * Iterates a grid of the default view directly through the formula's kernel.
+		 */
+		static Scene kernel(String name, Formula formula, boolean doublePrecision, double budget) {
+			Scene scene = new Scene(name, true, budget);
+			scene.settings.formula = formula;
+			scene.settings.doublePrecision = doublePrecision;
+			scene.size = doublePrecision ? 200 : 16;
+			formula.kernel();
+			return scene;
+		}
+
+		/**
+		 * Renders a view through the calculator.
+		 */
+		static Scene render(String name, String x0, String y0, String x1, String y1, int size, Customizer customizer,
+				double budget) {
+			Scene scene = new Scene(name, false, budget);
+			scene.x0 = new BigDecimal(x0);
+			scene.y0 = new BigDecimal(y0);
+			scene.x1 = new BigDecimal(x1);
+			scene.y1 = new BigDecimal(y1);
+			scene.size = size;
+			customizer.apply(scene.settings);
+			return scene;
+		}
+
+		/**
+		 * Moves the default view the way the user would, so that most of its pixels
+		 * are reused from the view before.
+		 */
+		static Scene move(String name, int size, Move move, double budget) {
+			Scene scene = new Scene(name, false, budget);
+			scene.size = size;
+			scene.settings.width = size;
+			scene.settings.height = size;
+			scene.settings.scaleFactor = 1;
+			scene.move = move;
+			return scene;
+		}
+
+		/**
+		 * @return the number of pixels calculated
+		 */
+		long run(Calculator calculator) throws Exception {
+			if (onCallingThread) {
+				return iterate();
+			}
+			if (move != null) {
+				if (provider == null) {
+					provider = new SnapshotProvider(settings, calculator);
+					awaitRender();
+				}
+				move.apply(provider);
+				awaitRender();
+				return (long) size * size;
+			}
+			Snapshot snapshot = new Snapshot(settings, new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB), x0,
+					y0, x1, y1);
+			calculator.submit(snapshot).get();
+			return (long) size * size;
+		}
+
+		private void awaitRender() throws InterruptedException {
+			Snapshot snapshot = provider.getSnapshot();
+			while (!snapshot.isComplete()) {
+				if (snapshot.getFailure() != null) {
+					throw new IllegalStateException(name + " failed", snapshot.getFailure());
+				}
+				Thread.sleep(1);
+			}
+		}
+
+		private long iterate() {
+			Kernel kernel = settings.formula.kernel();
+			MathContext mathContext = settings.mathContext;
+			double xStep = x1.subtract(x0).doubleValue() / size;
+			double yStep = y1.subtract(y0).doubleValue() / size;
+			double checksum = 0;
+			for (int i = 0; i < size; i++) {
+				double x = x0.doubleValue() + i * xStep;
+				for (int j = 0; j < size; j++) {
+					double y = y0.doubleValue() + j * yStep;
+					if (settings.doublePrecision) {
+						checksum += kernel.iterate(x, y, settings.maxIter, settings.infThreshDouble);
+					} else {
+						checksum += kernel.iterate(new BigDecimal(x), new BigDecimal(y), settings.maxIter,
+								settings.infThreshArbitrary, mathContext);
+					}
+				}
+			}
+			sink = checksum;
+			return (long) size * size;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package mandelbrot.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import mandelbrot.Calculator;
+import mandelbrot.Settings;
+import mandelbrot.Snapshot;
+
+/**
+ * Renders a fixed catalogue of whole frames and compares their times and image
+ * hashes with a baseline file. A scene is a regression when its throughput, from
+ * its best milliseconds per frame, drops more than the threshold below the
+ * baseline, or when its image differs from the golden hash, so that a speedup
+ * cannot silently change the output.
+ * <p>
+ * Each scene is warmed up for the minimum time and then rendered at least the
+ * given number of times and until the runs add up to the minimum time, so that
+ * the best of a fast scene is not one interrupted frame and that of a slow one
+ * not a frame the JIT compiler had yet to reach. Scenes with adaptive smoothing
+ * also report how many pixels it sampled again and how many samples each took.
+ * <p>
+ * Options: {@code --update} rewrites the baseline from this run,
+ * {@code --baseline=<file>}, {@code --threshold=<fraction>} (default 0.15),
+ * {@code --runs=<n>} (default 5), {@code --min-ms=<n>} (default 1000) and
+ * {@code --scene=<prefix>} to run a subset.
+ * Run with {@code gradle benchmark -PbenchmarkArgs="..."}.
+ */
+public final class RenderBenchmark {
+	private static final String DEFAULT_BASELINE = "benchmarks/baseline.properties";
+
+	private static final com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+			.getOperatingSystemMXBean();
+
+	private RenderBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean update = false;
+		Path baselineFile = Paths.get(DEFAULT_BASELINE);
+		double threshold = 0.15;
+		int runs = 5;
+		long minMillis = 1000;
+		String only = "";
+		for (String arg : args) {
+			if (arg.equals("--update")) {
+				update = true;
+			} else if (arg.startsWith("--baseline=")) {
+				baselineFile = Paths.get(value(arg));
+			} else if (arg.startsWith("--threshold=")) {
+				threshold = Double.parseDouble(value(arg));
+			} else if (arg.startsWith("--runs=")) {
+				runs = Integer.parseInt(value(arg));
+			} else if (arg.startsWith("--min-ms=")) {
+				minMillis = Long.parseLong(value(arg));
+			} else if (arg.startsWith("--scene=")) {
+				only = value(arg);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+
+		Properties baseline = new Properties();
+		if (Files.exists(baselineFile)) {
+			try (Reader reader = Files.newBufferedReader(baselineFile, StandardCharsets.UTF_8)) {
+				baseline.load(reader);
+			}
+		}
+
+		System.out.printf("%-28s %9s %6s %9s %9s %8s %6s  %s%n", "scene", "pixels", "runs", "ms", "baseline",
+				"Mpx/s", "cores", "result");
+		Calculator calculator = new Calculator();
+		int regressions = 0;
+		for (Scene scene : catalogue()) {
+			if (!scene.name.startsWith(only)) {
+				continue;
+			}
+			Result result = scene.measure(calculator, runs, minMillis);
+			double baselineMillis = Double.parseDouble(baseline.getProperty(scene.name + ".ms", "0"));
+			String baselineHash = baseline.getProperty(scene.name + ".hash");
+
+			String verdict;
+			if (baselineHash == null) {
+				verdict = "new";
+			} else if (!baselineHash.equals(result.hash)) {
+				verdict = "IMAGE CHANGED";
+				regressions++;
+			} else if (baselineMillis > 0 && baselineMillis / result.millis < 1 - threshold) {
+				verdict = String.format("SLOWER by %.0f%%", 100 * (1 - baselineMillis / result.millis));
+				regressions++;
+			} else {
+				verdict = "ok";
+			}
+			System.out.printf("%-28s %9d %6d %9.3f %9.3f %8.3f %6.2f  %s%n", scene.name, scene.pixels(), result.runs,
+					result.millis, baselineMillis, scene.pixels() / (result.millis * 1e3), result.cores, verdict);
+			if (result.smoothedPixels > 0) {
+				System.out.printf("%-28s %9d smoothed with %.1f samples each%n", "", result.smoothedPixels,
+						result.smoothingSamples / (double) result.smoothedPixels);
+			}
+
+			if (update) {
+				baseline.remove(scene.name + ".mpps");
+				baseline.setProperty(scene.name + ".ms", String.format("%.3f", result.millis));
+				baseline.setProperty(scene.name + ".hash", result.hash);
+			}
+		}
+
+		if (update) {
+			write(baseline, baselineFile);
+			System.out.println("Updated " + baselineFile);
+		} else if (regressions > 0) {
+			System.out.println(regressions + " regression(s) against " + baselineFile);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The default view, an interior-heavy view, a boundary-heavy view, also with
+	 * adaptive smoothing, and deep double and arbitrary precision views, at several
+	 * sizes and scale factors.
+	 */
+	private static List<Scene> catalogue() {
+		List<Scene> scenes = new ArrayList<>();
+		for (int[] size : new int[][] { { 200, 1 }, { 200, 2 }, { 400, 2 } }) {
+			scenes.add(new Scene("default", "-2.5", "-2", "1.5", "2", size[0], size[1]));
+		}
+		for (int[] size : new int[][] { { 200, 1 }, { 200, 2 } }) {
+			scenes.add(new Scene("interior", "-0.6", "-0.4", "0.2", "0.4", size[0], size[1]));
+		}
+		for (int[] size : new int[][] { { 200, 1 }, { 200, 2 } }) {
+			scenes.add(new Scene("boundary", "-0.7454", "0.1130", "-0.7446", "0.1138", size[0], size[1]));
+		}
+		Scene smoothed = new Scene("smoothed", "-0.7454", "0.1130", "-0.7446", "0.1138", 200, 1);
+		smoothed.settings.adaptiveSmoothing = true;
+		scenes.add(smoothed);
+		Scene deepDouble = new Scene("deep-1e-12", "-0.743643887037658704752191506114774",
+				"0.131825904204811970493132056385139", "-0.743643887036658704752191506114774",
+				"0.131825904205811970493132056385139", 100, 2);
+		scenes.add(deepDouble);
+		Scene deepArbitrary = new Scene("deep-1e-30", "-0.0000000000000000000000000000005",
+				"0.9999999999999999999999999999995", "0.0000000000000000000000000000005",
+				"1.0000000000000000000000000000005", 40, 1);
+		deepArbitrary.settings.doublePrecision = false;
+		deepArbitrary.settings.mathContext = new MathContext(45, RoundingMode.HALF_UP);
+		deepArbitrary.settings.maxIter = 1000;
+		deepArbitrary.settings.regenerateColors();
+		scenes.add(deepArbitrary);
+		return scenes;
+	}
+
+	private static String value(String arg) {
+		return arg.substring(arg.indexOf('=') + 1);
+	}
+
+	private static void write(Properties baseline, Path file) throws IOException {
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("# Render benchmark baseline, written by RenderBenchmark --update\n");
+			for (Map.Entry<Object, Object> entry : new TreeMap<>(baseline).entrySet()) {
+				writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Hashes the pixels, not an encoded file, so that the hash depends only on what
+	 * was rendered.
+	 */
+	static String hash(BufferedImage image) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		int[] row = new int[image.getWidth()];
+		byte[] bytes = new byte[row.length * 4];
+		for (int y = 0; y < image.getHeight(); y++) {
+			image.getRGB(0, y, row.length, 1, row, 0, row.length);
+			for (int x = 0; x < row.length; x++) {
+				bytes[4 * x] = (byte) (row[x] >> 24);
+				bytes[4 * x + 1] = (byte) (row[x] >> 16);
+				bytes[4 * x + 2] = (byte) (row[x] >> 8);
+				bytes[4 * x + 3] = (byte) row[x];
+			}
+			digest.update(bytes);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : Arrays.copyOf(digest.digest(), 12)) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static final class Result {
+		int runs;
+		double millis;
+		double cores;
+		String hash;
+		long smoothedPixels;
+		long smoothingSamples;
+	}
+
+	private static final class Scene {
+		final String name;
+		final Settings settings = new Settings();
+		final BigDecimal x0;
+		final BigDecimal y0;
+		final BigDecimal x1;
+		final BigDecimal y1;
+
+		Scene(String view, String x0, String y0, String x1, String y1, int size, int scaleFactor) {
+			this.name = view + "-" + size + "x" + scaleFactor;
+			this.x0 = new BigDecimal(x0);
+			this.y0 = new BigDecimal(y0);
+			this.x1 = new BigDecimal(x1);
+			this.y1 = new BigDecimal(y1);
+			settings.width = size;
+			settings.height = size;
+			settings.scaleFactor = scaleFactor;
+		}
+
+		long pixels() {
+			return (long) settings.getScaledWidth() * settings.getScaledHeight();
+		}
+
+		/**
+		 * Renders the scene for the given time to warm up and then until it has run
+		 * at least the given number of times for at least that time again, keeping
+		 * the fastest run. Every run has to produce the same image. The cores are averaged over
+		 * all runs, as a single short one is below the resolution of the CPU time.
+		 */
+		Result measure(Calculator calculator, int runs, long minMillis) throws Exception {
+			String expected = hash(render(calculator).image);
+			long warmUpEnd = System.nanoTime() + minMillis * 1_000_000;
+			while (System.nanoTime() < warmUpEnd) {
+				render(calculator);
+			}
+			Result result = new Result();
+			result.hash = expected;
+			result.millis = Double.MAX_VALUE;
+			long totalWall = 0;
+			long totalCpu = 0;
+			while (result.runs < runs || totalWall < minMillis * 1_000_000) {
+				long cpu = os.getProcessCpuTime();
+				long start = System.nanoTime();
+				Snapshot snapshot = render(calculator);
+				long wall = System.nanoTime() - start;
+				totalCpu += os.getProcessCpuTime() - cpu;
+				totalWall += wall;
+				result.runs++;
+				result.millis = Math.min(result.millis, wall / 1e6);
+				if (!hash(snapshot.image).equals(expected)) {
+					throw new IllegalStateException("Scene " + name + " rendered differently between runs");
+				}
+				result.smoothedPixels = snapshot.getSmoothedPixels();
+				result.smoothingSamples = snapshot.getSmoothingSamples();
+			}
+			result.cores = totalCpu / (double) totalWall;
+			return result;
+		}
+
+		private Snapshot render(Calculator calculator) throws Exception {
+			Snapshot snapshot = new Snapshot(settings, new BufferedImage(settings.getScaledWidth(),
+					settings.getScaledHeight(), BufferedImage.TYPE_INT_RGB), x0, y0, x1, y1);
+			return calculator.submit(snapshot).get();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package mandelbrot.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mandelbrot.Settings;
+import mandelbrot.server.TileServer;
+
+/**
+ * Starts a tile server and has several clients fly the same zoom path into the
+ * boundary at the same time, each fetching the tiles of every view in its own
+ * order. The first flight renders, with the clients' requests for a tile sharing
+ * one render; the second is served from the cache. Reports tiles per second and
+ * latencies for both.
+ * <p>
+ * Options: {@code --clients=<n>} (default 8), {@code --zoom=<n>} for the deepest
+ * level of the path (default 10) and {@code --max-iter=<n>} (default 1000). Run
+ * with {@code gradle tileBenchmark -PtileBenchmarkArgs="..."}.
+ */
+public final class TileBenchmark {
+	private static final double TARGET_X = -0.743643887037158;
+	private static final double TARGET_Y = 0.131825904205312;
+	private static final int VIEW_TILES = 4;
+
+	private TileBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		int clients = 8;
+		int maxZoom = 10;
+		Settings settings = new Settings();
+		settings.maxIter = 1000;
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--clients=")) {
+				clients = Integer.parseInt(value);
+			} else if (arg.startsWith("--zoom=")) {
+				maxZoom = Integer.parseInt(value);
+			} else if (arg.startsWith("--max-iter=")) {
+				settings.maxIter = Integer.parseInt(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		settings.regenerateColors();
+
+		TileServer server = new TileServer(settings, 0, 256L << 20, 4 * clients * VIEW_TILES * VIEW_TILES);
+		server.start();
+		try {
+			List<List<String>> path = path("http://localhost:" + server.getPort() + "/tiles/", maxZoom);
+			System.out.printf("%-6s %8s %9s %9s %8s %8s %8s %8s %8s%n", "flight", "requests", "seconds", "tiles/s",
+					"p50 ms", "p99 ms", "renders", "shared", "dropped");
+			for (String flight : new String[] { "cold", "warm" }) {
+				long renders = server.getRenders();
+				long coalesced = server.getCoalesced();
+				long dropped = server.getDropped();
+				List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+				long start = System.nanoTime();
+				fly(path, clients, latencies);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				Collections.sort(latencies);
+				System.out.printf("%-6s %8d %9.2f %9.1f %8.1f %8.1f %8d %8d %8d%n", flight, latencies.size(), seconds,
+						latencies.size() / seconds, percentile(latencies, 0.5), percentile(latencies, 0.99),
+						server.getRenders() - renders, server.getCoalesced() - coalesced,
+						server.getDropped() - dropped);
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * The tile URLs of a view centred on the target at each zoom level.
+	 */
+	private static List<List<String>> path(String base, int maxZoom) {
+		List<List<String>> views = new ArrayList<>();
+		for (int z = 2; z <= maxZoom; z++) {
+			long tiles = 1L << z;
+			long centreX = (long) ((TARGET_X + 2.5) / 4 * tiles);
+			long centreY = (long) ((TARGET_Y + 2) / 4 * tiles);
+			List<String> view = new ArrayList<>();
+			for (long x = centreX - VIEW_TILES / 2; x < centreX + VIEW_TILES / 2; x++) {
+				for (long y = centreY - VIEW_TILES / 2; y < centreY + VIEW_TILES / 2; y++) {
+					if (x >= 0 && y >= 0 && x < tiles && y < tiles) {
+						view.add(base + z + "/" + x + "/" + y + ".png");
+					}
+				}
+			}
+			views.add(view);
+		}
+		return views;
+	}
+
+	private static void fly(List<List<String>> path, int clients, List<Long> latencies) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		AtomicLong failures = new AtomicLong();
+		try {
+			List<CompletableFuture<Void>> flights = new ArrayList<>();
+			for (int client = 0; client < clients; client++) {
+				Random random = new Random(client);
+				flights.add(CompletableFuture.runAsync(() -> {
+					for (List<String> view : path) {
+						List<String> order = new ArrayList<>(view);
+						Collections.shuffle(order, random);
+						for (String url : order) {
+							long start = System.nanoTime();
+							if (fetch(url) != 200) {
+								failures.incrementAndGet();
+							}
+							latencies.add(System.nanoTime() - start);
+						}
+					}
+				}, pool));
+			}
+			CompletableFuture.allOf(flights.toArray(new CompletableFuture<?>[0])).get();
+		} finally {
+			pool.shutdown();
+		}
+		if (failures.get() > 0) {
+			System.out.println(failures.get() + " request(s) did not return a tile");
+		}
+	}
+
+	private static int fetch(String url) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			int status = connection.getResponseCode();
+			try (InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+				if (in != null) {
+					in.readAllBytes();
+				}
+			}
+			return status;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	private static double percentile(List<Long> sorted, double fraction) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		return sorted.get(Math.min(sorted.size() - 1, (int) (fraction * sorted.size()))) / 1e6;
+	}
+}
@@ -0,0 +1,198 @@
+package mandelbrot;
+
+import java.awt.Color;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mandelbrot.formula.Kernel;
+
+/**
+ * Smooths a finished snapshot where it needs it rather than everywhere. Pixels
+ * whose colour differs from a neighbour's by more than the threshold are replaced
+ * by the average of jittered samples across their area; flat bands and the inside
+ * of the set keep their single sample. The samples fill a 4x4 grid of strata in an
+ * order that covers every quadrant first, and a pixel whose first eight samples
+ * agree with it stops there.
+ */
+class AdaptiveSmoothing {
+	private static final int GRID = 4;
+	/**
+	 * The strata as x + GRID * y, in the order of a Bayer matrix, so that any prefix
+	 * is spread evenly over the pixel.
+	 */
+	private static final int[] STRATA = { 0, 10, 2, 8, 5, 15, 7, 13, 1, 11, 3, 9, 4, 14, 6, 12 };
+	/**
+	 * Two samples per quadrant; one per quadrant still left a visible error on
+	 * smooth gradients.
+	 */
+	private static final int FIRST_ROUND = 8;
+
+	interface Palette {
+		int colorOf(float iterations);
+	}
+
+	private final Render render;
+	private final Snapshot snapshot;
+	private final Settings settings;
+	private final Palette palette;
+	private final int width;
+	private final int height;
+	private final double xInterval;
+	private final double yInterval;
+	private final boolean[] refine;
+	private final AtomicLong refined = new AtomicLong();
+	private final AtomicLong samples = new AtomicLong();
+
+	AdaptiveSmoothing(Render render, Palette palette) {
+		this.render = render;
+		this.snapshot = render.snapshot;
+		this.settings = snapshot.settings;
+		this.palette = palette;
+		this.width = snapshot.image.getWidth();
+		this.height = snapshot.image.getHeight();
+		this.xInterval = render.xInterval.doubleValue();
+		this.yInterval = render.yInterval.doubleValue();
+		this.refine = new boolean[width * height];
+	}
+
+	CompletableFuture<Void> apply(Executor executor) {
+		CompletableFuture<Void> sampled = BandWork.forEachBand(render.bandBounds, this::mark, executor)
+				.thenCompose(v -> BandWork.forEachBand(render.bandBounds, this::sample, executor));
+		if (render.mirrorRows != null) {
+			sampled = sampled.thenCompose(v -> BandWork.forEachBand(render.bandBounds, this::mirror, executor));
+		}
+		return sampled.thenRun(() -> snapshot.recordSmoothing(refined.get(), samples.get()));
+	}
+
+	/**
+	 * Marks the pixels of the band that differ from any of their eight neighbours.
+	 */
+	private void mark(int band, int minY, int maxY) {
+		int top = Math.max(0, minY - 1);
+		int bottom = Math.min(height, maxY + 1);
+		int[] rows = snapshot.image.getRGB(0, top, width, bottom - top, null, 0, width);
+		for (int x = 0; x < width; x++) {
+			if (render.isCancelled()) {
+				return;
+			}
+			for (int y = minY; y < maxY; y++) {
+				int rgb = rows[(y - top) * width + x];
+				search: for (int ny = Math.max(top, y - 1); ny <= Math.min(bottom - 1, y + 1); ny++) {
+					for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+						if (difference(rgb, rows[(ny - top) * width + nx]) > settings.smoothingThreshold) {
+							refine[x * height + y] = true;
+							break search;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void sample(int band, int minY, int maxY) {
+		int limit = Math.max(1, Math.min(STRATA.length, settings.smoothingSamples));
+		for (int x = 0; x < width; x++) {
+			if (render.isCancelled()) {
+				return;
+			}
+			for (int y = minY; y < maxY; y++) {
+				if (!refine[x * height + y] || mirrorSource(x, y) >= 0) {
+					continue;
+				}
+				int rgb = snapshot.image.getRGB(x, y);
+				int red = 0;
+				int green = 0;
+				int blue = 0;
+				boolean agree = true;
+				int count = 0;
+				for (; count < limit; count++) {
+					if (count == FIRST_ROUND && agree) {
+						break;
+					}
+					int stratum = STRATA[count];
+					double dx = ((stratum % GRID) + jitter(x, y, 2 * count)) / GRID - 1;
+					double dy = ((stratum / GRID) + jitter(x, y, 2 * count + 1)) / GRID - 1;
+					int sample = colorAt(x, y, dx, dy);
+					agree &= difference(rgb, sample) <= settings.smoothingThreshold;
+					red += sample >> 16 & 0xff;
+					green += sample >> 8 & 0xff;
+					blue += sample & 0xff;
+				}
+				int half = count / 2;
+				snapshot.image.setRGB(x, y,
+						(red + half) / count << 16 | (green + half) / count << 8 | (blue + half) / count);
+				refined.incrementAndGet();
+				samples.addAndGet(count);
+			}
+		}
+	}
+
+	/**
+	 * Copies the smoothed pixels of the rows mirroring others in the real axis. The
+	 * area of a pixel extends one interval back from its grid point, so the mirror
+	 * of its area is that of the pixel after the mirrored one.
+	 */
+	private void mirror(int band, int minY, int maxY) {
+		for (int x = 0; x < width; x++) {
+			for (int y = minY; y < maxY; y++) {
+				int source = refine[x * height + y] ? mirrorSource(x, y) : -1;
+				if (source >= 0) {
+					snapshot.image.setRGB(x, y, snapshot.image.getRGB(x, source));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the row whose smoothed pixel covers the mirror of this one, or -1 if
+	 *         the pixel has to be sampled itself
+	 */
+	private int mirrorSource(int x, int y) {
+		if (render.mirrorRows == null || render.mirrorRows[y] < 0) {
+			return -1;
+		}
+		int source = render.mirrorRows[y] + 1;
+		return source < height && render.mirrorRows[source] < 0 && refine[x * height + source] ? source : -1;
+	}
+
+	/**
+	 * The colour at an offset from a grid point, in pixels.
+	 */
+	private int colorAt(int x, int y, double dx, double dy) {
+		double iterations;
+		if (settings.doublePrecision) {
+			iterations = render.kernel.iterate(render.xCoordinates[x] + dx * xInterval,
+					render.yCoordinates[y] + dy * yInterval, settings.maxIter, settings.infThreshDouble);
+		} else {
+			MathContext mathContext = settings.mathContext;
+			BigDecimal cr = render.xPoints.get(x)
+					.add(render.xInterval.multiply(BigDecimal.valueOf(dx), mathContext), mathContext);
+			BigDecimal ci = render.yPoints.get(y)
+					.add(render.yInterval.multiply(BigDecimal.valueOf(dy), mathContext), mathContext);
+			iterations = render.kernel.iterate(cr, ci, settings.maxIter, settings.infThreshArbitrary, mathContext);
+		}
+		return iterations != Kernel.NOT_ESCAPED ? palette.colorOf((float) iterations) : Color.BLACK.getRGB();
+	}
+
+	private static int difference(int a, int b) {
+		return Math.max(Math.abs((a >> 16 & 0xff) - (b >> 16 & 0xff)),
+				Math.max(Math.abs((a >> 8 & 0xff) - (b >> 8 & 0xff)), Math.abs((a & 0xff) - (b & 0xff))));
+	}
+
+	/**
+	 * A fixed pseudo-random number in [0, 1) for each pixel and sample, so that a
+	 * view always renders the same.
+	 */
+	private static double jitter(int x, int y, int n) {
+		int hash = x * 0x9E3779B1 + y * 0x85EBCA77 + n * 0xC2B2AE3D;
+		hash ^= hash >>> 15;
+		hash *= 0x2C1B3C6D;
+		hash ^= hash >>> 12;
+		hash *= 0x297A2D39;
+		hash ^= hash >>> 15;
+		return (hash >>> 8) / (double) (1 << 24);
+	}
+}
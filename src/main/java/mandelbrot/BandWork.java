@@ -0,0 +1,25 @@
+package mandelbrot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Work on one band of a finished snapshot, for the phases that run over the whole
+ * image after its pixels have been calculated.
+ */
+interface BandWork {
+	void run(int band, int minY, int maxY);
+
+	/**
+	 * Runs the work on every band in parallel.
+	 */
+	static CompletableFuture<Void> forEachBand(int[] bandBounds, BandWork work, Executor executor) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[bandBounds.length - 1];
+		for (int band = 0; band < futures.length; band++) {
+			int index = band;
+			futures[band] = CompletableFuture.runAsync(
+					() -> work.run(index, bandBounds[index], bandBounds[index + 1]), executor);
+		}
+		return CompletableFuture.allOf(futures);
+	}
+}
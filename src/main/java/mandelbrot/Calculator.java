@@ -2,196 +2,640 @@ package mandelbrot;
 
 import java.awt.Color;
 import java.math.BigDecimal;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mandelbrot.formula.Kernel;
 
 public class Calculator {
-	private static final double INV_LOG_2 = 1.0 / Math.log(2);
+	private static final double GRID_TOLERANCE = 1e-6;
 	private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
-	private static final int CALC_THREADS = MAX_THREADS - 1;
-	private static final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+	/**
+	 * Bands per render, several per thread so that threads that finish their cheap
+	 * bands take over the remaining ones instead of idling. Every band starts its own
+	 * traces, so more bands than this cost more CPU than they save in waiting.
+	 */
+	private static final int BANDS = 4 * MAX_THREADS;
+	private static final int DEFAULT_MAX_BACKGROUND_RENDERS = 4 * MAX_THREADS;
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final int UP = 0;
+	private static final int LEFT = 3;
+	/**
+	 * The four neighbours, clockwise from the one above.
+	 */
+	private static final int[] DX = { 0, 1, 0, -1 };
+	private static final int[] DY = { -1, 0, 1, 0 };
+	private static final ThreadLocal<TraceScratch> traceScratch = ThreadLocal.withInitial(TraceScratch::new);
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 0,
+			TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+				Thread thread = new Thread(r, "calculator");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	static {
+		executor.prestartAllCoreThreads();
+	}
+
+	private final int maxBackgroundRenders;
+
+	private final AtomicInteger foregroundRenders = new AtomicInteger();
+
+	private final Queue<RenderTask> pausedTasks = new ConcurrentLinkedQueue<>();
+
+	private final Deque<Render> backgroundRenders = new ArrayDeque<>();
 
-	private final Settings settings;
+	public Calculator() {
+		this(DEFAULT_MAX_BACKGROUND_RENDERS);
+	}
 
-	public Calculator(Settings settings) {
-		this.settings = settings;
+	/**
+	 * @param maxBackgroundRenders how many speculative and batch renders may wait for
+	 *                             their first band before the oldest lowest priority
+	 *                             waiting one is cancelled
+	 */
+	public Calculator(int maxBackgroundRenders) {
+		this.maxBackgroundRenders = maxBackgroundRenders;
 	}
 
-	public void submit(Snapshot snapshot) {
-		executor.submit(() -> calculate(snapshot));
+	public CompletableFuture<Snapshot> submit(Snapshot snapshot) {
+		return submit(snapshot, RenderPriority.FOREGROUND);
 	}
 
-	void calculate(Snapshot snapshot) {
+	/**
+	 * Queues a render without blocking any thread on its completion. Its bands are
+	 * queued individually behind the bands of higher priority renders, so any
+	 * number of renders in flight share all threads and always finish. The result
+	 * completes with the snapshot, or with a {@link java.util.concurrent.CancellationException}
+	 * if the render was cancelled or evicted before every pixel got calculated.
+	 * Cancelling the result cancels the render.
+	 */
+	public CompletableFuture<Snapshot> submit(Snapshot snapshot, RenderPriority priority) {
+		Render render = new Render(snapshot, priority);
+		render.result.whenComplete((s, e) -> {
+			if (render.result.isCancelled()) {
+				render.cancel();
+			}
+		});
+		if (priority == RenderPriority.FOREGROUND) {
+			foregroundRenders.incrementAndGet();
+		} else {
+			admit(render);
+		}
+		executor.execute(new RenderTask(render, () -> {
+			try {
+				prepare(render);
+			} catch (Throwable e) {
+				render.fail(e);
+				finish(render);
+			}
+		}));
+		return render.result;
+	}
+
+	/**
+	 * Renders a snapshot the user may ask for next. Speculative work gives way to any
+	 * foreground render as soon as one is submitted, leaving its partial result in the
+	 * snapshot so that it can be adopted, and resumes once no foreground render is
+	 * left.
+	 */
+	public CompletableFuture<Snapshot> submitSpeculative(Snapshot snapshot) {
+		return submit(snapshot, RenderPriority.SPECULATIVE);
+	}
+
+	/**
+	 * Queues a background render, evicting the oldest lowest priority one that is
+	 * still waiting if too many are. Renders leave the queue when their first band
+	 * starts, so work that is under way is never thrown away.
+	 */
+	private void admit(Render render) {
+		synchronized (backgroundRenders) {
+			backgroundRenders.add(render);
+			while (backgroundRenders.size() > maxBackgroundRenders) {
+				Render evicted = null;
+				for (Render candidate : backgroundRenders) {
+					if (evicted == null || candidate.priority.compareTo(evicted.priority) > 0) {
+						evicted = candidate;
+					}
+				}
+				backgroundRenders.remove(evicted);
+				// Does nothing if a band started since, which is about to dequeue it anyway
+				evicted.evict();
+			}
+		}
+	}
+
+	private void markStarted(Render render) {
+		if (render.markStarted() && render.priority != RenderPriority.FOREGROUND) {
+			synchronized (backgroundRenders) {
+				backgroundRenders.remove(render);
+			}
+		}
+	}
+
+	boolean shouldStop(Render render) {
+		return render.isCancelled() || (render.priority == RenderPriority.SPECULATIVE
+				&& (foregroundRenders.get() > 0 || render.snapshot.isAdopted()));
+	}
+
+	private boolean shouldPause(Render render) {
+		return render.priority == RenderPriority.SPECULATIVE && !render.isCancelled()
+				&& !render.snapshot.isAdopted() && foregroundRenders.get() > 0;
+	}
+
+	void prepare(Render render) {
+		Snapshot snapshot = render.snapshot;
+		Settings settings = snapshot.settings;
+		int width = snapshot.image.getWidth();
+		int height = snapshot.image.getHeight();
 		BigDecimal widthInterval = snapshot.x1.subtract(snapshot.x0, settings.mathContext)
-				.divide(BigDecimal.valueOf(settings.getScaledWidth()), settings.mathContext);
+				.divide(BigDecimal.valueOf(width), settings.mathContext);
 		BigDecimal heightInterval = snapshot.y1.subtract(snapshot.y0, settings.mathContext)
-				.divide(BigDecimal.valueOf(settings.getScaledHeight()), settings.mathContext);
+				.divide(BigDecimal.valueOf(height), settings.mathContext);
 		List<BigDecimal> xPoints = new ArrayList<>();
 		BigDecimal x = snapshot.x0;
-		for (int i = 0; i < settings.getScaledWidth(); i++) {
+		for (int i = 0; i < width; i++) {
 			xPoints.add(x = x.add(widthInterval, settings.mathContext));
 		}
 
 		List<BigDecimal> yPoints = new ArrayList<>();
 		BigDecimal y = snapshot.y0;
-		for (int i = 0; i < settings.getScaledHeight(); i++) {
+		for (int i = 0; i < height; i++) {
 			yPoints.add(y = y.add(heightInterval, settings.mathContext));
 		}
+		render.xPoints = xPoints;
+		render.yPoints = yPoints;
+		render.xInterval = widthInterval;
+		render.yInterval = heightInterval;
+		if (settings.doublePrecision) {
+			render.xCoordinates = xPoints.stream().mapToDouble(BigDecimal::doubleValue).toArray();
+			render.yCoordinates = yPoints.stream().mapToDouble(BigDecimal::doubleValue).toArray();
+		}
+		render.kernel = settings.formula.kernel();
+
+		Snapshot source = snapshot.takeSource();
+		if (source != null && source.getCalculated() != null && canReuse(source.settings, settings)) {
+			render.source = source;
+			render.xMap = gridMapping(source.x0, source.x1, source.image.getWidth(), snapshot.x0, snapshot.x1, width,
+					settings);
+			render.yMap = gridMapping(source.y0, source.y1, source.image.getHeight(), snapshot.y0, snapshot.y1,
+					height, settings);
+		}
 
-		int[] threadBounds = new int[CALC_THREADS + 1];
-		threadBounds[0] = 0;
-		threadBounds[CALC_THREADS] = settings.getScaledHeight();
-		for (int t = 1; t < CALC_THREADS; t++) {
-			threadBounds[t] = (int) (settings.getScaledHeight() * (t / (double) CALC_THREADS));
-		}
-
-		Collection<Future<?>> futures = new ArrayList<>();
-		for (int t = 0; t < CALC_THREADS; t++) {
-			int minY = threadBounds[t];
-			int maxY = threadBounds[t + 1];
-			futures.add(executor.submit(() -> {
-				long t1 = System.currentTimeMillis();
-				int[] tracePosition = { 0, minY };
-				do {
-					tracePosition = calculateArea(snapshot, xPoints, yPoints, minY, maxY, tracePosition);
-					traceEdge(snapshot, xPoints, yPoints, minY, maxY, tracePosition);
-				} while (tracePosition != null);
-				snapshot.finishCalculation();
-				long t2 = System.currentTimeMillis();
-				// System.out.println((t2-t1) / 1000.0);
-			}));
-		}
-		for (Future<?> future : futures) {
-			try {
-				future.get();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
+		if (settings.formula.isConjugateSymmetric()) {
+			render.mirrorRows = mirrorRows(snapshot.y0, snapshot.y1, height, settings);
+		}
+		if (settings.formula.hasFullSet()) {
+			render.traceOwners = new int[width * height];
+		}
+
+		int bands = Math.min(BANDS, height);
+		render.bandBounds = new int[bands + 1];
+		for (int t = 0; t <= bands; t++) {
+			render.bandBounds[t] = (int) (height * (t / (double) bands));
+		}
+		render.startBands(bands);
+		if (render.source != null) {
+			// Traces cross bands, so every band has to be reused before any is calculated
+			AtomicInteger pendingReuse = new AtomicInteger(bands);
+			for (int t = 0; t < bands; t++) {
+				int minY = render.bandBounds[t];
+				int maxY = render.bandBounds[t + 1];
+				executor.execute(new RenderTask(render, () -> {
+					markStarted(render);
+					try {
+						reuse(render.source, snapshot, render.xMap, render.yMap, minY, maxY);
+					} catch (Throwable e) {
+						render.fail(e);
+					}
+					if (pendingReuse.decrementAndGet() == 0) {
+						calculateBands(render);
+					}
+				}));
 			}
+		} else {
+			calculateBands(render);
+		}
+	}
+
+	private void calculateBands(Render render) {
+		for (int t = 0; t < render.bandBounds.length - 1; t++) {
+			int minY = render.bandBounds[t];
+			int maxY = render.bandBounds[t + 1];
+			executor.execute(new RenderTask(render, () -> calculateBand(render, minY, maxY, 0)));
+		}
+	}
+
+	/**
+	 * Calculates the pixels of a band from column fromX on. A band that runs into a
+	 * component another band is already tracing leaves it to that band and
+	 * continues once it has been filled.
+	 */
+	void calculateBand(Render render, int minY, int maxY, int fromX) {
+		markStarted(render);
+		boolean finished = false;
+		try {
+			int height = render.snapshot.image.getHeight();
+			int start;
+			while ((start = calculateArea(render, minY, maxY, fromX)) >= 0) {
+				int index = start / 4;
+				int x = fromX = index / height;
+				int owner = traceEdge(render, x, index % height, start % 4);
+				if (owner > 0 && render.awaitTrace(owner, () -> calculateBand(render, minY, maxY, x))) {
+					return;
+				}
+			}
+			fromX = -1 - start;
+			if (shouldPause(render)) {
+				int x = fromX;
+				pause(new RenderTask(render, () -> calculateBand(render, minY, maxY, x)));
+				return;
+			}
+			finished = !shouldStop(render);
+		} catch (Throwable e) {
+			render.fail(e);
+		}
+		if (render.finishBand(finished)) {
+			finish(render);
+		}
+	}
+
+	private void pause(RenderTask task) {
+		pausedTasks.add(task);
+		if (foregroundRenders.get() == 0) {
+			resumePaused();
+		}
+	}
+
+	private void resumePaused() {
+		RenderTask task;
+		while ((task = pausedTasks.poll()) != null) {
+			executor.execute(task);
 		}
 	}
 
-	int[] calculateArea(Snapshot snapshot, List<BigDecimal> xPoints, List<BigDecimal> yPoints, int minY, int maxY,
-			int[] start) {
-		if (start == null) {
+	/**
+	 * Runs the phases over the whole image, histogram colouring before smoothing so
+	 * that the samples are coloured the same way as the pixels.
+	 */
+	private void finish(Render render) {
+		Settings settings = render.snapshot.settings;
+		if (!(settings.histogramColoring || settings.adaptiveSmoothing) || !render.isIntact()) {
+			complete(render);
+			return;
+		}
+		Executor phaseExecutor = work -> executor.execute(new RenderTask(render, work));
+		CompletableFuture<AdaptiveSmoothing.Palette> palette;
+		if (settings.histogramColoring) {
+			HistogramColoring histogram = new HistogramColoring(render.snapshot, render.bandBounds);
+			palette = histogram.apply(phaseExecutor).thenApply(v -> histogram::colorOf);
+		} else {
+			palette = CompletableFuture.completedFuture(iterations -> colorOf(settings, iterations));
+		}
+		CompletableFuture<Void> phases = palette.thenCompose(colors -> settings.adaptiveSmoothing
+				? new AdaptiveSmoothing(render, colors).apply(phaseExecutor)
+				: CompletableFuture.<Void>completedFuture(null));
+		phases.whenComplete((v, e) -> {
+			if (e != null) {
+				render.fail(e);
+			}
+			complete(render);
+		});
+	}
+
+	private void complete(Render render) {
+		render.complete();
+		if (render.priority == RenderPriority.FOREGROUND) {
+			if (foregroundRenders.decrementAndGet() == 0) {
+				resumePaused();
+			}
+		} else {
+			synchronized (backgroundRenders) {
+				backgroundRenders.remove(render);
+			}
+		}
+	}
+
+	/**
+	 * Whether pixels iterated with the source settings are still valid with the
+	 * target settings. Raising maxIter keeps every escaped pixel; anything else that
+	 * changes the iteration invalidates the whole source.
+	 */
+	boolean canReuse(Settings source, Settings target) {
+		return source.formula.equals(target.formula) && source.doublePrecision == target.doublePrecision
+				&& (target.doublePrecision || source.mathContext.equals(target.mathContext))
+				&& source.infThreshDouble == target.infThreshDouble && source.maxIter <= target.maxIter;
+	}
+
+	/**
+	 * Maps each point of the target grid to the source grid point it coincides with,
+	 * or -1. Grid point i of an axis lies at start + (i + 1) * (end - start) / size,
+	 * so shifted, rescaled by an integer ratio or identical grids share points.
+	 */
+	int[] gridMapping(BigDecimal sourceStart, BigDecimal sourceEnd, int sourceSize, BigDecimal targetStart,
+			BigDecimal targetEnd, int targetSize, Settings settings) {
+		BigDecimal sourceInterval = sourceEnd.subtract(sourceStart, settings.mathContext)
+				.divide(BigDecimal.valueOf(sourceSize), settings.mathContext);
+		BigDecimal targetInterval = targetEnd.subtract(targetStart, settings.mathContext)
+				.divide(BigDecimal.valueOf(targetSize), settings.mathContext);
+		double offset = targetStart.subtract(sourceStart, settings.mathContext)
+				.divide(sourceInterval, settings.mathContext).doubleValue();
+		double ratio = targetInterval.divide(sourceInterval, settings.mathContext).doubleValue();
+
+		int[] mapping = new int[targetSize];
+		for (int i = 0; i < targetSize; i++) {
+			double sourcePoint = offset + (i + 1) * ratio;
+			long nearest = Math.round(sourcePoint);
+			if (Math.abs(sourcePoint - nearest) < GRID_TOLERANCE && nearest >= 1 && nearest <= sourceSize) {
+				mapping[i] = (int) nearest - 1;
+			} else {
+				mapping[i] = -1;
+			}
+		}
+		return mapping;
+	}
+
+	/**
+	 * Pairs the rows of the grid that mirror each other in the real axis, to within
+	 * the grid tolerance. The later row of each pair maps to the earlier one, every
+	 * other row to -1.
+	 *
+	 * @return the mapping, or null if no rows mirror each other
+	 */
+	int[] mirrorRows(BigDecimal start, BigDecimal end, int size, Settings settings) {
+		BigDecimal interval = end.subtract(start, settings.mathContext).divide(BigDecimal.valueOf(size),
+				settings.mathContext);
+		// Row i lies at start + (i + 1) * interval, so rows i and j mirror each other
+		// when i + j + 2 is -2 * start / interval
+		double sum = start.multiply(BigDecimal.valueOf(-2), settings.mathContext)
+				.divide(interval, settings.mathContext).doubleValue();
+		long nearest = Math.round(sum);
+		if (Math.abs(sum - nearest) >= GRID_TOLERANCE || nearest < 2 || nearest > 2L * size) {
 			return null;
 		}
+		int[] mirror = new int[size];
+		for (int i = 0; i < size; i++) {
+			long j = nearest - 2 - i;
+			mirror[i] = j >= 0 && j < i ? (int) j : -1;
+		}
+		return mirror;
+	}
 
-		for (int x = start[0]; x < settings.getScaledWidth(); x++) {
+	void reuse(Snapshot source, Snapshot target, int[] xMap, int[] yMap, int minY, int maxY) {
+		boolean sameMaxIter = source.settings.maxIter == target.settings.maxIter;
+		// The source may have been reduced to its image since the render took it
+		byte[][] sourceStates = source.getCalculated();
+		float[][] sourceIterations = source.getIterations();
+		if (sourceStates == null || sourceIterations == null) {
+			return;
+		}
+		for (int x = 0; x < xMap.length; x++) {
+			int sourceX = xMap[x];
+			if (sourceX < 0) {
+				continue;
+			}
 			for (int y = minY; y < maxY; y++) {
-				if (isCalculated(snapshot, x, y)) {
+				int sourceY = yMap[y];
+				if (sourceY < 0) {
 					continue;
 				}
-				if (evalPoint(snapshot, x, y, xPoints, yPoints)) {
-					return new int[] { x, y };
+				byte state = Snapshot.getCalculatedState(sourceStates, sourceX, sourceY);
+				if (state == 1) {
+					float iterations = sourceIterations[sourceX][sourceY];
+					target.getIterations()[x][y] = iterations;
+					target.image.setRGB(x, y, colorOf(target.settings, iterations));
+					target.setCalculated(x, y, (byte) 1);
+				} else if (state == 2 && sameMaxIter) {
+					target.image.setRGB(x, y, Color.BLACK.getRGB());
+					target.setCalculated(x, y, (byte) 2);
 				}
 			}
 		}
-
-		return null;
 	}
 
-	void traceEdge(Snapshot snapshot, List<BigDecimal> xPoints, List<BigDecimal> yPoints, int minY, int maxY,
-			int[] start) {
-		if (start == null) {
-			return;
+	/**
+	 * Calculates the band column by column until it meets a component of the set,
+	 * or to the end if the formula's set may enclose escaping points. The render is
+	 * checked for being stopped before every pixel, so that a foreground render does
+	 * not wait for a whole column of a speculative one.
+	 * <p>
+	 * The component is traced from its pixel's neighbour above or, as the column to
+	 * the left is already calculated, the one to the left. Where a band starts inside
+	 * a component that has neither, the trace starts at the top of the column
+	 * instead, so that the component is still filled rather than calculated pixel by
+	 * pixel until a trace from another band reaches it.
+	 *
+	 * @return 4 * (x * height + y) + side for the pixel to trace from and the side
+	 *         its outside neighbour is on, or -1 - x once the band is done or
+	 *         stopped, with x the column to resume from
+	 */
+	int calculateArea(Render render, int minY, int maxY, int fromX) {
+		Snapshot snapshot = render.snapshot;
+		int width = snapshot.image.getWidth();
+		int height = snapshot.image.getHeight();
+		boolean trace = render.traceOwners != null;
+		for (int x = fromX; x < width; x++) {
+			for (int y = minY; y < maxY; y++) {
+				if (isCalculated(snapshot, x, y)) {
+					continue;
+				}
+				if (shouldStop(render)) {
+					return -1 - x;
+				}
+				if (!evalPoint(render, x, y) || !trace) {
+					continue;
+				}
+				if (y == 0 || !evalPoint(render, x, y - 1)) {
+					return 4 * (x * height + y) + UP;
+				}
+				if (x == 0 || !evalPoint(render, x - 1, y)) {
+					return 4 * (x * height + y) + LEFT;
+				}
+				int top = y - 1;
+				while (top > 0 && evalPoint(render, x, top - 1)) {
+					top--;
+				}
+				return 4 * (x * height + top) + UP;
+			}
 		}
+		return -1 - width;
+	}
 
-		int minX = start[0];
-		int x = start[0];
-		int y = start[1];
-
-		int[] down = { 0, 1 };
-		int[] right = { 1, 0 };
-		int[] up = { 0, -1 };
-		int[] left = { -1, 0 };
-
-		Map<int[], int[][]> decisions = new HashMap<>();
-		decisions.put(down, new int[][] { left, down, right });
-		decisions.put(right, new int[][] { down, right, up });
-		decisions.put(up, new int[][] { right, up, left });
-		decisions.put(left, new int[][] { up, left, down });
-
-		Map<int[], int[]> opposites = new HashMap<>();
-		opposites.put(down, up);
-		opposites.put(up, down);
-		opposites.put(right, left);
-		opposites.put(left, right);
-
-		Map<int[], int[]> externals = new HashMap<>();
-		externals.put(down, left);
-		externals.put(up, right);
-		externals.put(right, down);
-		externals.put(left, up);
-
-		final int set = 1;
-		final int ext = 2;
-		int[][] mapping = new int[settings.getScaledWidth() + 2][maxY - minY + 2];
-
-		int[] prevDir = null;
-		search: do {
-			int[][] choices = decisions.get(prevDir == null ? down : prevDir);
-			for (int[] choice : choices) {
-				if (inBounds(minX, settings.getScaledWidth(), minY, maxY, x, y, choice)) {
-					if (evalPoint(snapshot, x + choice[0], y + choice[1], xPoints, yPoints)) {
-						prevDir = choice;
-						x += choice[0];
-						y += choice[1];
-
-						int[] external = externals.get(choice);
-						mapping[x + 1][y - minY + 1] = set;
-						mapping[x + external[0] + 1][y + external[1] - minY + 1] = ext;
-						continue search;
-					} else {
-						mapping[x + choice[0] + 1][y + choice[1] - minY + 1] = ext;
+	/**
+	 * Follows the outer edge of the component of the set at the given pixel, which
+	 * must have its neighbour on the given side outside the set, and fills the
+	 * uncalculated pixels it encloses. The edge is followed across bands, crack by
+	 * crack between the component and the pixels outside, so that pixels touching
+	 * the component only diagonally are left outside. When it meets the edge of a
+	 * trace that started earlier, it leaves the component to that trace.
+	 *
+	 * @return the earlier trace to wait for, or 0
+	 */
+	int traceEdge(Render render, int startX, int startY, int startSide) {
+		TraceScratch scratch = traceScratch.get();
+		int id = render.startTrace();
+		scratch.length = 0;
+		boolean filled = false;
+		try {
+			scratch.minX = scratch.maxX = startX;
+			scratch.minY = scratch.maxY = startY;
+			int owner = addEdge(render, scratch, id, startX, startY);
+			int x = startX;
+			int y = startY;
+			int side = startSide;
+			do {
+				if (owner != id || shouldStop(render)) {
+					return owner == Render.FILLED ? 0 : owner;
+				}
+				int ahead = (side + 1) & 3;
+				int aheadX = x + DX[ahead];
+				int aheadY = y + DY[ahead];
+				if (!evalEdgePoint(render, aheadX, aheadY)) {
+					side = ahead;
+				} else if (!evalEdgePoint(render, aheadX + DX[side], aheadY + DY[side])) {
+					x = aheadX;
+					y = aheadY;
+					owner = addEdge(render, scratch, id, x, y);
+				} else {
+					owner = addEdge(render, scratch, id, aheadX, aheadY);
+					x = aheadX + DX[side];
+					y = aheadY + DY[side];
+					side = (side + 3) & 3;
+					if (owner == id) {
+						owner = addEdge(render, scratch, id, x, y);
 					}
 				}
+			} while (x != startX || y != startY || side != startSide);
+			filled = fill(render, scratch, startX + DX[startSide], startY + DY[startSide]);
+			return 0;
+		} finally {
+			for (int i = 0; i < scratch.length; i++) {
+				if (filled) {
+					render.markFilled(scratch.contour[i]);
+				} else {
+					render.releaseEdge(scratch.contour[i], id);
+				}
 			}
-			if (prevDir != null) {
-				x -= prevDir[0];
-				y -= prevDir[1];
-				prevDir = opposites.get(prevDir);
+			for (Runnable waiter : render.endTrace(id)) {
+				executor.execute(new RenderTask(render, waiter));
 			}
-		} while (x != start[0] || y != start[1]);
-
-		boolean[] sawYExt = new boolean[maxY - minY];
-		Arrays.fill(sawYExt, true);
-		for (int i = start[0]; i < settings.getScaledWidth(); i++) {
-			boolean sawXExt = true;
-			for (int j = minY; j < maxY; j++) {
-				int value = mapping[i + 1][j - minY + 1];
-				if (value == ext) {
-					sawXExt = true;
-					sawYExt[j - minY] = true;
-				} else if (value == set) {
-					sawXExt = false;
-					sawYExt[j - minY] = false;
-				}
-				if (!isCalculated(snapshot, i, j) && !sawXExt && !sawYExt[j - minY]) {
-					snapshot.getCalculated()[i][j] = 2;
-					snapshot.image.setRGB(i, j, Color.BLACK.getRGB());
+		}
+	}
+
+	/**
+	 * Like {@link #evalPoint(Render, int, int)}, taking pixels outside the image as
+	 * outside the set.
+	 */
+	private boolean evalEdgePoint(Render render, int x, int y) {
+		return x >= 0 && x < render.snapshot.image.getWidth() && y >= 0 && y < render.snapshot.image.getHeight()
+				&& evalPoint(render, x, y);
+	}
+
+	/**
+	 * Claims an edge pixel for the trace and adds it to the contour.
+	 *
+	 * @return the owner of the pixel, which is the trace itself unless another
+	 *         trace got to it first
+	 */
+	private int addEdge(Render render, TraceScratch scratch, int id, int x, int y) {
+		int index = x * render.snapshot.image.getHeight() + y;
+		int owner = render.claimEdge(index, id);
+		if (owner < id) {
+			return owner;
+		}
+		if (scratch.length == scratch.contour.length) {
+			scratch.contour = Arrays.copyOf(scratch.contour, 2 * scratch.length);
+		}
+		scratch.contour[scratch.length++] = index;
+		scratch.minX = Math.min(scratch.minX, x);
+		scratch.maxX = Math.max(scratch.maxX, x);
+		scratch.minY = Math.min(scratch.minY, y);
+		scratch.maxY = Math.max(scratch.maxY, y);
+		return id;
+	}
+
+	/**
+	 * Floods the bounding box of a traced edge from its border, diagonally too, and
+	 * fills every uncalculated pixel the flood cannot reach, unless the edge turns
+	 * out to be that of a hole rather than the outer edge.
+	 *
+	 * @param outsideX the pixel outside the set the trace started next to
+	 * @return whether the edge was an outer edge
+	 */
+	private boolean fill(Render render, TraceScratch scratch, int outsideX, int outsideY) {
+		Snapshot snapshot = render.snapshot;
+		int height = snapshot.image.getHeight();
+		int minX = scratch.minX;
+		int minY = scratch.minY;
+		int boxWidth = scratch.maxX - minX + 3;
+		int boxHeight = scratch.maxY - minY + 3;
+		int edge = scratch.nextStamp(boxWidth * boxHeight);
+		int outside = edge + 1;
+		int[] marks = scratch.marks;
+		int[] queue = scratch.queue;
+		for (int i = 0; i < scratch.length; i++) {
+			int index = scratch.contour[i];
+			marks[(index / height - minX + 1) * boxHeight + index % height - minY + 1] = edge;
+		}
+
+		int tail = 0;
+		for (int bx = 0; bx < boxWidth; bx++) {
+			for (int by = 0; by < boxHeight; by += (bx == 0 || bx == boxWidth - 1) ? 1 : boxHeight - 1) {
+				int cell = bx * boxHeight + by;
+				marks[cell] = outside;
+				queue[tail++] = cell;
+			}
+		}
+		for (int head = 0; head < tail; head++) {
+			int cell = queue[head];
+			int bx = cell / boxHeight;
+			int by = cell % boxHeight;
+			for (int nx = Math.max(0, bx - 1); nx <= Math.min(boxWidth - 1, bx + 1); nx++) {
+				for (int ny = Math.max(0, by - 1); ny <= Math.min(boxHeight - 1, by + 1); ny++) {
+					int next = nx * boxHeight + ny;
+					if (marks[next] < edge) {
+						marks[next] = outside;
+						queue[tail++] = next;
+					}
 				}
 			}
 		}
-	}
 
-	boolean inBounds(int minX, int maxX, int minY, int maxY, int x, int y, int[] direction) {
-		x += direction[0];
-		y += direction[1];
-		if (x < minX || x >= maxX || y < minY || y >= maxY) {
+		// If the pixel outside the set the trace started next to is enclosed, the edge
+		// is that of a hole
+		if (marks[(outsideX - minX + 1) * boxHeight + outsideY - minY + 1] != outside) {
 			return false;
 		}
+		// An enclosed pixel another band calculated first is filled all the same, so
+		// that the image does not depend on which band got there first
+		for (int bx = 1; bx < boxWidth - 1; bx++) {
+			for (int by = 1; by < boxHeight - 1; by++) {
+				if (marks[bx * boxHeight + by] < edge) {
+					int x = minX + bx - 1;
+					int y = minY + by - 1;
+					if (!isInSet(snapshot, x, y)) {
+						// Reading the escaped state orders its colour before the black
+						if (snapshot.setCalculatedIfUnset(x, y, (byte) 2) == 1
+								&& snapshot.getCalculatedState(x, y) == 1) {
+							snapshot.setCalculated(x, y, (byte) 2);
+						}
+						snapshot.image.setRGB(x, y, Color.BLACK.getRGB());
+					}
+				}
+			}
+		}
 		return true;
 	}
 
@@ -203,101 +647,129 @@ public class Calculator {
 		return snapshot.getCalculated()[x][y] == 2;
 	}
 
-	boolean evalPoint(Snapshot snapshot, int xIndex, int yIndex, List<BigDecimal> xPoints, List<BigDecimal> yPoints) {
-		if (settings.doublePrecision) {
-			return evalPointDouble(snapshot, xIndex, yIndex, xPoints, yPoints);
-		} else {
-			return evalPointArbitrary(snapshot, xIndex, yIndex, xPoints, yPoints);
-		}
-	}
-
-	boolean evalPointArbitrary(Snapshot snapshot, int xIndex, int yIndex, List<BigDecimal> xPoints,
-			List<BigDecimal> yPoints) {
+	boolean evalPoint(Render render, int xIndex, int yIndex) {
+		Snapshot snapshot = render.snapshot;
 		if (isCalculated(snapshot, xIndex, yIndex)) {
 			return isInSet(snapshot, xIndex, yIndex);
 		}
 
-		BigDecimal x0 = xPoints.get(xIndex);
-		BigDecimal y0 = yPoints.get(yIndex);
-		BigDecimal x = BigDecimal.ZERO;
-		BigDecimal y = BigDecimal.ZERO;
-		BigDecimal x2 = BigDecimal.ZERO;
-		BigDecimal y2 = BigDecimal.ZERO;
-		BigDecimal x2PlusY2 = BigDecimal.ZERO;
-		int iter = 0;
-		Set<BigDecimal> xSet = new HashSet<>();
-		Set<BigDecimal> ySet = new HashSet<>();
-		while (x2PlusY2.compareTo(settings.infThreshArbitrary) < 0 && iter < settings.maxIter) {
-			y = x.add(x, settings.mathContext).multiply(y, settings.mathContext).add(y0, settings.mathContext);
-			x = x2.subtract(y2, settings.mathContext).add(x0, settings.mathContext);
-			x2 = x.multiply(x, settings.mathContext);
-			y2 = y.multiply(y, settings.mathContext);
-			x2PlusY2 = x2.add(y2, settings.mathContext);
-			iter++;
-
-			if (!xSet.add(x) && !ySet.add(y)) {
-				iter = settings.maxIter;
-				break;
-			}
+		if (render.mirrorRows != null && render.mirrorRows[yIndex] >= 0) {
+			return mirrorPoint(render, xIndex, yIndex, render.mirrorRows[yIndex]);
 		}
 
-		if (iter < settings.maxIter) {
-			double iterAdjusted = iter + 1 - Math.log((Math.log(x2PlusY2.doubleValue()) * 0.5) * INV_LOG_2) * INV_LOG_2;
-			double frac = iterAdjusted % 1;
+		Settings settings = snapshot.settings;
+		double iterAdjusted;
+		if (settings.doublePrecision) {
+			iterAdjusted = render.kernel.iterate(render.xCoordinates[xIndex], render.yCoordinates[yIndex],
+					settings.maxIter, settings.infThreshDouble);
+		} else {
+			iterAdjusted = render.kernel.iterate(render.xPoints.get(xIndex), render.yPoints.get(yIndex),
+					settings.maxIter, settings.infThreshArbitrary, settings.mathContext);
+		}
 
-			Color colorA = settings.iterColors[(int) Math.floor(iterAdjusted) - 1];
-			Color colorB = settings.iterColors[(int) Math.floor(iterAdjusted)];
-			snapshot.image.setRGB(xIndex, yIndex, Util.blend(colorA, colorB, frac).getRGB());
-			snapshot.getCalculated()[xIndex][yIndex] = 1;
-			return false;
+		byte state;
+		if (iterAdjusted != Kernel.NOT_ESCAPED) {
+			float iterations = (float) iterAdjusted;
+			snapshot.getIterations()[xIndex][yIndex] = iterations;
+			snapshot.image.setRGB(xIndex, yIndex, colorOf(settings, iterations));
+			state = 1;
 		} else {
 			snapshot.image.setRGB(xIndex, yIndex, Color.BLACK.getRGB());
-			snapshot.getCalculated()[xIndex][yIndex] = 2;
-			return true;
+			state = 2;
+		}
+		// A fill from another band may have got to the pixel first, and then stands
+		byte result = snapshot.setCalculatedIfUnset(xIndex, yIndex, state);
+		if (result != state) {
+			snapshot.image.setRGB(xIndex, yIndex, Color.BLACK.getRGB());
 		}
+		return result == 2;
 	}
 
-	boolean evalPointDouble(Snapshot snapshot, int xIndex, int yIndex, List<BigDecimal> xPoints,
-			List<BigDecimal> yPoints) {
-		if (isCalculated(snapshot, xIndex, yIndex)) {
-			return isInSet(snapshot, xIndex, yIndex);
+	/**
+	 * Copies a pixel from its mirror image, calculating that first if needed.
+	 */
+	private boolean mirrorPoint(Render render, int xIndex, int yIndex, int mirrorY) {
+		Snapshot snapshot = render.snapshot;
+		evalPoint(render, xIndex, mirrorY);
+		byte state = snapshot.getCalculatedState(xIndex, mirrorY);
+		if (state == 1) {
+			float iterations = snapshot.getIterations()[xIndex][mirrorY];
+			snapshot.getIterations()[xIndex][yIndex] = iterations;
+			// Reading the pixel back from the image would allocate its colour model's array
+			snapshot.image.setRGB(xIndex, yIndex, colorOf(snapshot.settings, iterations));
+		} else {
+			snapshot.image.setRGB(xIndex, yIndex, Color.BLACK.getRGB());
 		}
+		byte result = snapshot.setCalculatedIfUnset(xIndex, yIndex, state);
+		if (result != state) {
+			snapshot.image.setRGB(xIndex, yIndex, Color.BLACK.getRGB());
+		}
+		return result == 2;
+	}
+
+	static int colorOf(Settings settings, float iterAdjusted) {
+		int index = Math.max(1, Math.min((int) Math.floor(iterAdjusted), settings.iterColors.length - 1));
+		double frac = iterAdjusted % 1;
+
+		return Util.blendRGB(settings.iterColors[index - 1].getRGB(), settings.iterColors[index].getRGB(), frac);
+	}
 
-		double x0 = xPoints.get(xIndex).doubleValue();
-		double y0 = yPoints.get(yIndex).doubleValue();
-		Double x = 0.0;
-		Double y = 0.0;
-		Double x2 = 0.0;
-		Double y2 = 0.0;
-		int iter = 0;
-		Set<Double> xSet = new HashSet<>();
-		Set<Double> ySet = new HashSet<>();
-		while (x2 + y2 <= settings.infThreshDouble && iter < settings.maxIter) {
-			y = (x + x) * y + y0;
-			x = x2 - y2 + x0;
-			x2 = x * x;
-			y2 = y * y;
-			iter++;
-
-			if (!xSet.add(x) && !ySet.add(y)) {
-				iter = settings.maxIter;
-				break;
+	/**
+	 * Buffers of the edge tracer, one set per worker thread, grown when a larger
+	 * component comes along and otherwise reused. Marks from earlier traces are told
+	 * apart by their stamp rather than cleared.
+	 */
+	private static final class TraceScratch {
+		int[] contour = new int[1024];
+		int length;
+		int minX;
+		int minY;
+		int maxX;
+		int maxY;
+		int[] marks = new int[0];
+		int[] queue = new int[0];
+		private int stamp;
+
+		/**
+		 * @return a stamp greater than any mark left in the first cells
+		 */
+		int nextStamp(int cells) {
+			if (marks.length < cells) {
+				marks = new int[Math.max(cells, 2 * marks.length)];
+				queue = new int[marks.length];
+			}
+			if (stamp >= Integer.MAX_VALUE - 2) {
+				Arrays.fill(marks, 0);
+				stamp = 0;
 			}
+			stamp += 2;
+			return stamp;
 		}
+	}
 
-		if (iter < settings.maxIter) {
-			double iterAdjusted = iter + 1 - Math.log((Math.log(x2 + y2) * 0.5) * INV_LOG_2) * INV_LOG_2;
-			double frac = iterAdjusted % 1;
+	/**
+	 * A unit of work of a render, ordered by the render's priority and then by
+	 * submission order.
+	 */
+	private static final class RenderTask implements Runnable, Comparable<RenderTask> {
+		private final Render render;
+		private final Runnable work;
+		private final long order = sequence.getAndIncrement();
+
+		RenderTask(Render render, Runnable work) {
+			this.render = render;
+			this.work = work;
+		}
 
-			Color colorA = settings.iterColors[(int) Math.floor(iterAdjusted) - 1];
-			Color colorB = settings.iterColors[(int) Math.floor(iterAdjusted)];
-			snapshot.image.setRGB(xIndex, yIndex, Util.blend(colorA, colorB, frac).getRGB());
-			snapshot.getCalculated()[xIndex][yIndex] = 1;
-			return false;
-		} else {
-			snapshot.image.setRGB(xIndex, yIndex, Color.BLACK.getRGB());
-			snapshot.getCalculated()[xIndex][yIndex] = 2;
-			return true;
+		@Override
+		public void run() {
+			work.run();
+		}
+
+		@Override
+		public int compareTo(RenderTask other) {
+			int byPriority = render.priority.compareTo(other.render.priority);
+			return byPriority != 0 ? byPriority : Long.compare(order, other.order);
 		}
 	}
 }
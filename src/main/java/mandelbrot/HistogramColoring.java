@@ -0,0 +1,149 @@
+package mandelbrot;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Recolours a finished snapshot so that every palette colour covers the same share
+ * of the escaped pixels, whatever the depth. Each band counts its pixels into its
+ * own histogram; the histograms are merged once and turned into a cumulative
+ * distribution with a parallel prefix sum, which each band then maps its pixels
+ * through. The number of bins is bounded by the pixel count, so the cost stays in
+ * proportion to the image rather than to maxIter.
+ */
+class HistogramColoring {
+	private static final int GRADIENT_SIZE = 4096;
+
+	private final Snapshot snapshot;
+	private final int[] bandBounds;
+	private final float[] bandMin;
+	private final float[] bandMax;
+	private final int[][] bandCounts;
+
+	private float min;
+	private double binScale;
+	private int bins;
+	private long[] counts;
+	private long[] cumulative;
+	private int[] gradient;
+
+	HistogramColoring(Snapshot snapshot, int[] bandBounds) {
+		this.snapshot = snapshot;
+		this.bandBounds = bandBounds;
+		int bands = bandBounds.length - 1;
+		this.bandMin = new float[bands];
+		this.bandMax = new float[bands];
+		this.bandCounts = new int[bands][];
+	}
+
+	CompletableFuture<Void> apply(Executor executor) {
+		return BandWork.forEachBand(bandBounds, this::measure, executor).thenRun(this::chooseBins)
+				.thenCompose(v -> BandWork.forEachBand(bandBounds, this::count, executor)).thenRun(this::accumulate)
+				.thenCompose(v -> BandWork.forEachBand(bandBounds, this::paint, executor));
+	}
+
+	private void measure(int band, int minY, int maxY) {
+		float low = Float.POSITIVE_INFINITY;
+		float high = Float.NEGATIVE_INFINITY;
+		byte[][] calculated = snapshot.getCalculated();
+		float[][] iterations = snapshot.getIterations();
+		for (int x = 0; x < calculated.length; x++) {
+			for (int y = minY; y < maxY; y++) {
+				if (calculated[x][y] == 1) {
+					low = Math.min(low, iterations[x][y]);
+					high = Math.max(high, iterations[x][y]);
+				}
+			}
+		}
+		bandMin[band] = low;
+		bandMax[band] = high;
+	}
+
+	private void chooseBins() {
+		min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int band = 0; band < bandMin.length; band++) {
+			min = Math.min(min, bandMin[band]);
+			max = Math.max(max, bandMax[band]);
+		}
+		int pixels = snapshot.image.getWidth() * snapshot.image.getHeight();
+		int maxBins = Math.max(1, pixels / bandMin.length);
+		if (max > min) {
+			bins = (int) Math.min(maxBins, Math.ceil(max) - Math.floor(min) + 1);
+			binScale = bins / (double) (max - min);
+		} else {
+			bins = 1;
+			binScale = 0;
+		}
+	}
+
+	private int bin(float iterations) {
+		return Math.min(bins - 1, (int) ((iterations - min) * binScale));
+	}
+
+	private void count(int band, int minY, int maxY) {
+		int[] histogram = new int[bins];
+		byte[][] calculated = snapshot.getCalculated();
+		float[][] iterations = snapshot.getIterations();
+		for (int x = 0; x < calculated.length; x++) {
+			for (int y = minY; y < maxY; y++) {
+				if (calculated[x][y] == 1) {
+					histogram[bin(iterations[x][y])]++;
+				}
+			}
+		}
+		bandCounts[band] = histogram;
+	}
+
+	private void accumulate() {
+		counts = new long[bins];
+		for (int[] histogram : bandCounts) {
+			for (int i = 0; i < bins; i++) {
+				counts[i] += histogram[i];
+			}
+		}
+		cumulative = counts.clone();
+		Arrays.parallelPrefix(cumulative, Long::sum);
+		gradient = gradient(snapshot.settings.colors);
+	}
+
+	private void paint(int band, int minY, int maxY) {
+		byte[][] calculated = snapshot.getCalculated();
+		float[][] iterations = snapshot.getIterations();
+		for (int x = 0; x < calculated.length; x++) {
+			for (int y = minY; y < maxY; y++) {
+				if (calculated[x][y] == 1) {
+					snapshot.image.setRGB(x, y, colorOf(iterations[x][y]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The colour of an escaped point under the distribution of the snapshot, also
+	 * for points between its pixels.
+	 */
+	int colorOf(float iterations) {
+		double position = Math.max(0, (iterations - min) * binScale);
+		int bin = Math.min(bins - 1, (int) position);
+		double fraction = Math.min(1, position - bin);
+		double share = (cumulative[bin] - counts[bin] + fraction * counts[bin]) / Math.max(1, cumulative[bins - 1]);
+		return gradient[(int) (share * (GRADIENT_SIZE - 1))];
+	}
+
+	/**
+	 * Runs once through the colours, from the first to the last.
+	 */
+	private static int[] gradient(Color[] colors) {
+		int[] gradient = new int[GRADIENT_SIZE];
+		for (int i = 0; i < GRADIENT_SIZE; i++) {
+			double position = i / (double) (GRADIENT_SIZE - 1) * (colors.length - 1);
+			int index = Math.min(colors.length - 1, (int) position);
+			Color next = colors[Math.min(colors.length - 1, index + 1)];
+			gradient[i] = Util.blend(colors[index], next, position - index).getRGB();
+		}
+		return gradient;
+	}
+}
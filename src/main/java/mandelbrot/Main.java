@@ -7,7 +7,7 @@ import mandelbrot.ui.swing.MandelbrotWindow;
 public class Main {
 	public static void main(String[] args) throws InvocationTargetException, InterruptedException {
 		Settings settings = new Settings();
-		Calculator calculator = new Calculator(settings);
+		Calculator calculator = new Calculator();
 		SnapshotProvider snapshotProvider = new SnapshotProvider(settings, calculator);
 		MandelbrotWindow.setUp(settings, snapshotProvider);
 	}
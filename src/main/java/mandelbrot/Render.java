@@ -0,0 +1,190 @@
+package mandelbrot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mandelbrot.formula.Kernel;
+
+/**
+ * One submitted render of a snapshot: its grid, what it reuses and how many of its
+ * bands are still outstanding. The last band to finish completes the result.
+ */
+class Render {
+	private static final VarHandle OWNERS = MethodHandles.arrayElementVarHandle(int[].class);
+
+	/**
+	 * Owner of the edge pixels of a component that has been traced and filled.
+	 */
+	static final int FILLED = -1;
+
+	final Snapshot snapshot;
+	final RenderPriority priority;
+	final CompletableFuture<Snapshot> result = new CompletableFuture<>();
+
+	List<BigDecimal> xPoints;
+	List<BigDecimal> yPoints;
+	double[] xCoordinates;
+	double[] yCoordinates;
+	BigDecimal xInterval;
+	BigDecimal yInterval;
+	Kernel kernel;
+	int[] bandBounds;
+	Snapshot source;
+	int[] xMap;
+	int[] yMap;
+	/**
+	 * Rows copied from the row mirroring them in the real axis, or null.
+	 */
+	int[] mirrorRows;
+	/**
+	 * The trace each edge pixel belongs to, indexed by x * height + y, or 0; null if
+	 * the set is not traced.
+	 */
+	int[] traceOwners;
+
+	private final AtomicInteger remainingBands = new AtomicInteger();
+	private volatile boolean cancelled;
+	private volatile boolean interrupted;
+	private volatile Throwable failure;
+	private boolean started;
+	private int lastTraceId;
+	private final BitSet activeTraces = new BitSet();
+	private final Map<Integer, List<Runnable>> traceWaiters = new HashMap<>();
+
+	Render(Snapshot snapshot, RenderPriority priority) {
+		this.snapshot = snapshot;
+		this.priority = priority;
+		snapshot.beginRender();
+	}
+
+	void cancel() {
+		this.cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return this.cancelled || snapshot.isCancelled();
+	}
+
+	/**
+	 * @return whether this is the first band of the render to start
+	 */
+	synchronized boolean markStarted() {
+		if (started) {
+			return false;
+		}
+		started = true;
+		return true;
+	}
+
+	/**
+	 * Cancels the render unless one of its bands has started.
+	 */
+	synchronized void evict() {
+		if (!started) {
+			cancel();
+		}
+	}
+
+	void startBands(int bands) {
+		remainingBands.set(bands);
+	}
+
+	/**
+	 * @return whether this was the last outstanding band
+	 */
+	boolean finishBand(boolean finished) {
+		if (!finished) {
+			interrupted = true;
+		}
+		return remainingBands.decrementAndGet() == 0;
+	}
+
+	synchronized int startTrace() {
+		int id = ++lastTraceId;
+		activeTraces.set(id);
+		return id;
+	}
+
+	/**
+	 * @return the work that waited for the trace to end
+	 */
+	synchronized List<Runnable> endTrace(int id) {
+		activeTraces.clear(id);
+		List<Runnable> waiters = traceWaiters.remove(id);
+		return waiters != null ? waiters : Collections.emptyList();
+	}
+
+	/**
+	 * Queues work to be run once a trace has ended.
+	 *
+	 * @return false if the trace has already ended, in which case nothing is
+	 *         queued
+	 */
+	synchronized boolean awaitTrace(int id, Runnable work) {
+		if (!activeTraces.get(id)) {
+			return false;
+		}
+		traceWaiters.computeIfAbsent(id, k -> new ArrayList<>()).add(work);
+		return true;
+	}
+
+	/**
+	 * Makes the trace the owner of an edge pixel unless some trace already is.
+	 *
+	 * @return the owner of the pixel
+	 */
+	int claimEdge(int index, int id) {
+		int owner;
+		while ((owner = (int) OWNERS.getVolatile(traceOwners, index)) == 0) {
+			if (OWNERS.compareAndSet(traceOwners, index, 0, id)) {
+				return id;
+			}
+		}
+		return owner;
+	}
+
+	void releaseEdge(int index, int id) {
+		OWNERS.compareAndSet(traceOwners, index, id, 0);
+	}
+
+	void markFilled(int index) {
+		OWNERS.setVolatile(traceOwners, index, FILLED);
+	}
+
+	void fail(Throwable e) {
+		failure = e;
+	}
+
+	/**
+	 * @return whether every band finished without being stopped or failing
+	 */
+	boolean isIntact() {
+		return !interrupted && failure == null && !isCancelled();
+	}
+
+	/**
+	 * Completes the result with the snapshot if every pixel got calculated.
+	 */
+	void complete() {
+		snapshot.endRender();
+		if (failure != null) {
+			snapshot.markFailed(failure);
+			result.completeExceptionally(failure);
+		} else if (interrupted || isCancelled()) {
+			result.completeExceptionally(new CancellationException());
+		} else {
+			snapshot.markComplete();
+			result.complete(snapshot);
+		}
+	}
+}
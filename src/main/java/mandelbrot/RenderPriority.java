@@ -0,0 +1,10 @@
+package mandelbrot;
+
+/**
+ * Order in which queued renders get threads. Foreground renders are what the user
+ * is waiting for; speculative renders guess the next one and pause whenever a
+ * foreground render is running; batch renders fill in the remaining time.
+ */
+public enum RenderPriority {
+	FOREGROUND, SPECULATIVE, BATCH
+}
@@ -6,12 +6,23 @@ import java.math.MathContext;
 import java.math.RoundingMode;
 import java.util.stream.IntStream;
 
+import mandelbrot.formula.Formula;
+
 public class Settings {
 	public int scaleFactor = 2;
 	public int zoomFactor = 8;
 	public int width = 800;
 	public int height = 800;
+	/**
+	 * Smooths by sampling more only where neighbouring pixels differ by more than
+	 * the threshold in any colour channel, with at most the given number of extra
+	 * samples per pixel.
+	 */
+	public boolean adaptiveSmoothing = false;
+	public int smoothingThreshold = 16;
+	public int smoothingSamples = 16;
 
+	public Formula formula = Formula.MANDELBROT;
 	public boolean doublePrecision = true;
 	public Color uncalculatedColor = Color.GRAY;
 	public MathContext mathContext = new MathContext(20, RoundingMode.HALF_UP);
@@ -21,6 +32,7 @@ public class Settings {
 	public int maxIter = 10000;
 	public int colorThickness = 100;
 	public Color[] iterColors;
+	public boolean histogramColoring = false;
 	public Color[] colors = new Color[] { Util.blend(Color.BLUE, Color.BLACK, 0.75),
 			Util.blend(Color.BLUE, Color.WHITE, 0.75) };
 
@@ -28,6 +40,35 @@ public class Settings {
 		regenerateColors();
 	}
 
+	private Settings(Settings other) {
+		this.scaleFactor = other.scaleFactor;
+		this.zoomFactor = other.zoomFactor;
+		this.width = other.width;
+		this.height = other.height;
+		this.adaptiveSmoothing = other.adaptiveSmoothing;
+		this.smoothingThreshold = other.smoothingThreshold;
+		this.smoothingSamples = other.smoothingSamples;
+		this.formula = other.formula;
+		this.doublePrecision = other.doublePrecision;
+		this.uncalculatedColor = other.uncalculatedColor;
+		this.mathContext = other.mathContext;
+		this.infThreshDouble = other.infThreshDouble;
+		this.infThreshArbitrary = other.infThreshArbitrary;
+		this.maxIter = other.maxIter;
+		this.colorThickness = other.colorThickness;
+		this.iterColors = other.iterColors;
+		this.histogramColoring = other.histogramColoring;
+		this.colors = other.colors;
+	}
+
+	/**
+	 * Copies the current values so that a render is not affected by later changes.
+	 * The colour arrays are shared, as they are replaced rather than modified.
+	 */
+	public Settings copy() {
+		return new Settings(this);
+	}
+
 	public int getScaledWidth() {
 		return width * scaleFactor;
 	}
@@ -1,18 +1,39 @@
 package mandelbrot;
 
 import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigDecimal;
 
 public class Snapshot {
-	public ThreadLocal<byte[][]> calculated;
+	private static final VarHandle CALCULATED = MethodHandles.arrayElementVarHandle(byte[].class);
+
+	private byte[][] calculated;
+	private float[][] iterations;
+	public final Settings settings;
 	public final BufferedImage image;
 	public final BigDecimal x0;
 	public final BigDecimal y0;
 	public final BigDecimal x1;
 	public final BigDecimal y1;
 
-	public Snapshot(BufferedImage image, BigDecimal x0, BigDecimal y0, BigDecimal x1, BigDecimal y1) {
-		this.calculated = ThreadLocal.withInitial(() -> new byte[image.getWidth()][image.getHeight()]);
+	private volatile boolean cancelled;
+	private volatile boolean complete;
+	private volatile Throwable failure;
+	private int renders;
+	private boolean imageOnly;
+	private volatile long requestTime = System.nanoTime();
+	private volatile long completeTime;
+	private volatile long smoothedPixels;
+	private volatile long smoothingSamples;
+	private volatile boolean adopted;
+	private Snapshot source;
+
+	public Snapshot(Settings settings, BufferedImage image, BigDecimal x0, BigDecimal y0, BigDecimal x1,
+			BigDecimal y1) {
+		this.calculated = new byte[image.getWidth()][image.getHeight()];
+		this.iterations = new float[image.getWidth()][image.getHeight()];
+		this.settings = settings.copy();
 		this.image = image;
 		this.x0 = x0;
 		this.y0 = y0;
@@ -20,20 +41,181 @@ public class Snapshot {
 		this.y1 = y1;
 	}
 
-	public Snapshot(BufferedImage image, Snapshot old) {
-		this.calculated = ThreadLocal.withInitial(() -> new byte[image.getWidth()][image.getHeight()]);
-		this.image = image;
-		this.x0 = old.x0;
-		this.y0 = old.y0;
-		this.x1 = old.x1;
-		this.y1 = old.y1;
+	/**
+	 * Redraws the view of an older snapshot, reusing whatever of it is still valid
+	 * under the new settings.
+	 */
+	public Snapshot(Settings settings, BufferedImage image, Snapshot old) {
+		this(settings, image, old.x0, old.y0, old.x1, old.y1);
+		reuseFrom(old);
 	}
 
+	/**
+	 * @return the pixel states, or null once only the image is kept
+	 */
 	public byte[][] getCalculated() {
-		return this.calculated.get();
+		return this.calculated;
+	}
+
+	/**
+	 * Smoothed iteration counts of the escaped pixels, or null once only the image is
+	 * kept.
+	 */
+	public float[][] getIterations() {
+		return this.iterations;
+	}
+
+	/**
+	 * Reads a pixel state so that its image and iteration data are visible to a
+	 * thread other than the one that calculated it.
+	 */
+	public byte getCalculatedState(int x, int y) {
+		return getCalculatedState(calculated, x, y);
+	}
+
+	/**
+	 * Like {@link #getCalculatedState(int, int)}, for states read from
+	 * {@link #getCalculated()} before they may have been dropped.
+	 */
+	static byte getCalculatedState(byte[][] calculated, int x, int y) {
+		return (byte) CALCULATED.getAcquire(calculated[x], y);
+	}
+
+	public void setCalculated(int x, int y, byte state) {
+		CALCULATED.setRelease(calculated[x], y, state);
+	}
+
+	/**
+	 * Sets the state of a pixel unless another thread calculated it first.
+	 *
+	 * @return the state the pixel ended up with
+	 */
+	byte setCalculatedIfUnset(int x, int y, byte state) {
+		byte witness = (byte) CALCULATED.compareAndExchangeRelease(calculated[x], y, (byte) 0, state);
+		return witness == 0 ? state : witness;
+	}
+
+	/**
+	 * Lets the calculator copy the already calculated pixels of the source that fall
+	 * on this snapshot's grid instead of iterating them again.
+	 */
+	synchronized void reuseFrom(Snapshot source) {
+		this.source = source;
+	}
+
+	synchronized Snapshot takeSource() {
+		Snapshot source = this.source;
+		this.source = null;
+		return source;
+	}
+
+	public boolean overlaps(Snapshot other) {
+		return x0.compareTo(other.x1) < 0 && other.x0.compareTo(x1) < 0 && y0.compareTo(other.y1) < 0
+				&& other.y0.compareTo(y1) < 0;
+	}
+
+	public boolean hasBounds(BigDecimal x0, BigDecimal y0, BigDecimal x1, BigDecimal y1) {
+		return this.x0.compareTo(x0) == 0 && this.y0.compareTo(y0) == 0 && this.x1.compareTo(x1) == 0
+				&& this.y1.compareTo(y1) == 0;
+	}
+
+	/**
+	 * Drops the pixel states and iteration counts once no render of this snapshot is
+	 * running, for a snapshot that is only kept to show its image again. Later
+	 * snapshots then calculate its pixels rather than reuse them.
+	 */
+	public synchronized void keepImageOnly() {
+		imageOnly = true;
+		if (renders == 0) {
+			calculated = null;
+			iterations = null;
+		}
+	}
+
+	synchronized void beginRender() {
+		renders++;
+	}
+
+	synchronized void endRender() {
+		if (--renders == 0 && imageOnly) {
+			calculated = null;
+			iterations = null;
+		}
+	}
+
+	/**
+	 * Stops any render of this snapshot at the next pixel. Pixels calculated so far
+	 * stay valid.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	void markComplete() {
+		this.completeTime = System.nanoTime();
+		this.complete = true;
+	}
+
+	/**
+	 * @return the time from the request, or the adoption of a speculative snapshot,
+	 *         to the completed image, or -1 while it is not complete
+	 */
+	public long getRenderNanos() {
+		return complete ? completeTime - requestTime : -1;
+	}
+
+	void recordSmoothing(long pixels, long samples) {
+		this.smoothedPixels = pixels;
+		this.smoothingSamples = samples;
+	}
+
+	/**
+	 * @return how many pixels adaptive smoothing sampled again
+	 */
+	public long getSmoothedPixels() {
+		return this.smoothedPixels;
+	}
+
+	/**
+	 * @return the samples taken across all smoothed pixels
+	 */
+	public long getSmoothingSamples() {
+		return this.smoothingSamples;
+	}
+
+	/**
+	 * @return why the render of this snapshot failed, or null
+	 */
+	public Throwable getFailure() {
+		return this.failure;
+	}
+
+	void markFailed(Throwable failure) {
+		this.failure = failure;
+	}
+
+	/**
+	 * Turns a speculative snapshot into the one the user asked for, restarting the
+	 * click-to-image clock.
+	 */
+	public void adopt() {
+		this.adopted = true;
+		this.requestTime = System.nanoTime();
+	}
+
+	public boolean isAdopted() {
+		return this.adopted;
 	}
 
-	public void finishCalculation() {
-		this.calculated.remove();
+	public long getRequestTime() {
+		return this.requestTime;
 	}
-}
\ No newline at end of file
+}
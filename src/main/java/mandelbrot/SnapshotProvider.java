@@ -4,7 +4,10 @@ import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.math.BigDecimal;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 
 public class SnapshotProvider {
 
@@ -21,6 +24,10 @@ public class SnapshotProvider {
 
 	private Deque<Snapshot> prevSnapshots = new ArrayDeque<>();
 
+	private Snapshot speculativeSnapshot;
+
+	private Object[] speculativeSettings;
+
 	public SnapshotProvider(Settings settings, Calculator calculator) {
 		this.settings = settings;
 		this.calculator = calculator;
@@ -28,53 +35,148 @@ public class SnapshotProvider {
 	}
 
 	public void repaint() {
+		cancelSpeculation();
 		if (currentSnapshot != null) {
-			currentSnapshot = new Snapshot(newImage(), currentSnapshot);
-			calculator.submit(currentSnapshot);
+			currentSnapshot.cancel();
+			currentSnapshot = new Snapshot(settings, newImage(), currentSnapshot);
+			render(currentSnapshot);
+		}
+	}
+
+	/**
+	 * Moves the view by whole pixels of the current grid, so that only the newly
+	 * exposed strips need calculating.
+	 */
+	public void pan(int dx, int dy) {
+		cancelSpeculation();
+		if (currentSnapshot == null || (dx == 0 && dy == 0)) {
+			return;
 		}
+		BigDecimal xShift = currentSnapshot.x1.subtract(currentSnapshot.x0, settings.mathContext)
+				.multiply(BigDecimal.valueOf(dx), settings.mathContext)
+				.divide(BigDecimal.valueOf(currentSnapshot.image.getWidth()), settings.mathContext);
+		BigDecimal yShift = currentSnapshot.y1.subtract(currentSnapshot.y0, settings.mathContext)
+				.multiply(BigDecimal.valueOf(dy), settings.mathContext)
+				.divide(BigDecimal.valueOf(currentSnapshot.image.getHeight()), settings.mathContext);
+		Snapshot old = currentSnapshot;
+		old.cancel();
+		currentSnapshot = new Snapshot(settings, newImage(), old.x0.add(xShift, settings.mathContext),
+				old.y0.add(yShift, settings.mathContext), old.x1.add(xShift, settings.mathContext),
+				old.y1.add(yShift, settings.mathContext));
+		currentSnapshot.reuseFrom(old);
+		render(currentSnapshot);
 	}
 
 	public void zoomIn(int x, int y) {
-		BufferedImage image = newImage();
-		BigDecimal x0;
-		BigDecimal y0;
-		BigDecimal x1;
-		BigDecimal y1;
+		BigDecimal[] bounds;
 		if (currentSnapshot != null) {
+			// Only the latest snapshot in history is reused, the older ones are just shown again
+			if (!prevSnapshots.isEmpty()) {
+				prevSnapshots.peek().keepImageOnly();
+			}
 			prevSnapshots.push(currentSnapshot);
-			double xRatio = x / (double) (settings.width * settings.scaleFactor);
-			double yRatio = y / (double) (settings.height * settings.scaleFactor);
-			BigDecimal width = currentSnapshot.x1.subtract(currentSnapshot.x0, settings.mathContext);
-			BigDecimal height = currentSnapshot.y1.subtract(currentSnapshot.y0, settings.mathContext);
-			x0 = currentSnapshot.x0.add(width.multiply(BigDecimal.valueOf(xRatio), settings.mathContext))
-					.subtract(width.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
-			y0 = currentSnapshot.y0.add(height.multiply(BigDecimal.valueOf(yRatio), settings.mathContext))
-					.subtract(height.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
-			x1 = currentSnapshot.x0.add(width.multiply(BigDecimal.valueOf(xRatio), settings.mathContext))
-					.add(width.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
-			y1 = currentSnapshot.y0.add(height.multiply(BigDecimal.valueOf(yRatio), settings.mathContext))
-					.add(height.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
+			bounds = zoomBounds(x, y);
+		} else {
+			bounds = new BigDecimal[] { BigDecimal.valueOf(START_X0), BigDecimal.valueOf(START_Y0),
+					BigDecimal.valueOf(START_X1), BigDecimal.valueOf(START_Y1) };
+		}
+
+		if (isSpeculating(bounds)) {
+			currentSnapshot = speculativeSnapshot;
+			currentSnapshot.adopt();
+			speculativeSnapshot = null;
 		} else {
-			x0 = BigDecimal.valueOf(START_X0);
-			y0 = BigDecimal.valueOf(START_Y0);
-			x1 = BigDecimal.valueOf(START_X1);
-			y1 = BigDecimal.valueOf(START_Y1);
+			currentSnapshot = new Snapshot(settings, newImage(), bounds[0], bounds[1], bounds[2], bounds[3]);
+			if (speculativeSnapshot != null && speculativeSnapshot.overlaps(currentSnapshot)) {
+				currentSnapshot.reuseFrom(speculativeSnapshot);
+			} else if (!prevSnapshots.isEmpty()) {
+				currentSnapshot.reuseFrom(prevSnapshots.peek());
+			}
+			cancelSpeculation();
 		}
-		
-		currentSnapshot = new Snapshot(image, x0, y0, x1, y1);
-		calculator.submit(currentSnapshot);
+		render(currentSnapshot);
 	}
 
 	public void zoomOut() {
+		cancelSpeculation();
 		if (!prevSnapshots.isEmpty()) {
+			currentSnapshot.cancel();
 			currentSnapshot = prevSnapshots.pop();
 		}
 	}
 
+	/**
+	 * Starts rendering, on otherwise idle threads, the snapshot that
+	 * {@link #zoomIn(int, int)} would produce for the given position. Calling this
+	 * again for the same position keeps the speculative render going.
+	 */
+	public void speculate(int x, int y) {
+		if (currentSnapshot == null) {
+			return;
+		}
+		BigDecimal[] bounds = zoomBounds(x, y);
+		if (!isSpeculating(bounds)) {
+			cancelSpeculation();
+			speculativeSnapshot = new Snapshot(settings, newImage(), bounds[0], bounds[1], bounds[2], bounds[3]);
+			speculativeSnapshot.reuseFrom(currentSnapshot);
+			speculativeSettings = settingsFingerprint();
+			calculator.submitSpeculative(speculativeSnapshot);
+		}
+	}
+
+	public void cancelSpeculation() {
+		if (speculativeSnapshot != null) {
+			speculativeSnapshot.cancel();
+			speculativeSnapshot = null;
+		}
+	}
+
 	public Snapshot getSnapshot() {
 		return currentSnapshot;
 	}
 
+	/**
+	 * Renders a snapshot the user asked for and reports it if the render fails, as
+	 * when the formula's kernel does not compile. A failed speculative render is
+	 * reported once it is adopted and rendered here.
+	 */
+	private void render(Snapshot snapshot) {
+		calculator.submit(snapshot).whenComplete((rendered, e) -> {
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (cause != null && !(cause instanceof CancellationException)) {
+				cause.printStackTrace();
+			}
+		});
+	}
+
+	private boolean isSpeculating(BigDecimal[] bounds) {
+		return speculativeSnapshot != null && speculativeSnapshot.hasBounds(bounds[0], bounds[1], bounds[2], bounds[3])
+				&& Arrays.equals(speculativeSettings, settingsFingerprint());
+	}
+
+	private Object[] settingsFingerprint() {
+		return new Object[] { settings.getScaledWidth(), settings.getScaledHeight(), settings.formula,
+				settings.doublePrecision, settings.mathContext, settings.infThreshDouble, settings.maxIter,
+				settings.iterColors, settings.histogramColoring, settings.adaptiveSmoothing, settings.smoothingThreshold,
+				settings.smoothingSamples };
+	}
+
+	private BigDecimal[] zoomBounds(int x, int y) {
+		double xRatio = x / (double) (settings.width * settings.scaleFactor);
+		double yRatio = y / (double) (settings.height * settings.scaleFactor);
+		BigDecimal width = currentSnapshot.x1.subtract(currentSnapshot.x0, settings.mathContext);
+		BigDecimal height = currentSnapshot.y1.subtract(currentSnapshot.y0, settings.mathContext);
+		BigDecimal x0 = currentSnapshot.x0.add(width.multiply(BigDecimal.valueOf(xRatio), settings.mathContext))
+				.subtract(width.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
+		BigDecimal y0 = currentSnapshot.y0.add(height.multiply(BigDecimal.valueOf(yRatio), settings.mathContext))
+				.subtract(height.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
+		BigDecimal x1 = currentSnapshot.x0.add(width.multiply(BigDecimal.valueOf(xRatio), settings.mathContext))
+				.add(width.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
+		BigDecimal y1 = currentSnapshot.y0.add(height.multiply(BigDecimal.valueOf(yRatio), settings.mathContext))
+				.add(height.divide(BigDecimal.valueOf(settings.zoomFactor * 2), settings.mathContext));
+		return new BigDecimal[] { x0, y0, x1, y1 };
+	}
+
 	private BufferedImage newImage() {
 		BufferedImage image = new BufferedImage(settings.width * settings.scaleFactor,
 				settings.height * settings.scaleFactor, BufferedImage.TYPE_INT_RGB);
@@ -8,6 +8,14 @@ public final class Util {
 	}
 
 	public static Color blend(Color c1, Color c2, double ratio) {
+		return new Color(blendRGB(c1.getRGB(), c2.getRGB(), ratio));
+	}
+
+	/**
+	 * Like {@link #blend(Color, Color, double)}, for packed ARGB values, so that
+	 * per-pixel colouring does not allocate.
+	 */
+	public static int blendRGB(int i1, int i2, double ratio) {
 		if (ratio > 1f) {
 			ratio = 1f;
 		} else if (ratio < 0f) {
@@ -15,9 +23,6 @@ public final class Util {
 		}
 		double iRatio = 1.0 - ratio;
 
-		int i1 = c1.getRGB();
-		int i2 = c2.getRGB();
-
 		int a1 = (i1 >> 24 & 0xff);
 		int r1 = ((i1 & 0xff0000) >> 16);
 		int g1 = ((i1 & 0xff00) >> 8);
@@ -33,6 +38,6 @@ public final class Util {
 		int g = (int) ((g1 * iRatio) + (g2 * ratio));
 		int b = (int) ((b1 * iRatio) + (b2 * ratio));
 
-		return new Color(a << 24 | r << 16 | g << 8 | b);
+		return a << 24 | r << 16 | g << 8 | b;
 	}
 }
@@ -0,0 +1,228 @@
+package mandelbrot.formula;
+
+import java.math.BigDecimal;
+
+import mandelbrot.formula.KernelWriter.Complex;
+import mandelbrot.formula.KernelWriter.Real;
+
+/**
+ * A parsed formula expression over the complex variables z and c.
+ */
+abstract class Expression {
+
+	/**
+	 * Writes the statements computing this expression and returns its value.
+	 */
+	abstract Complex write(KernelWriter writer, Complex z, Complex c);
+
+	/**
+	 * The polynomial degree in z, used for smooth colouring.
+	 */
+	abstract int degree();
+
+	/**
+	 * Whether conjugating z and c conjugates the value, so that a formula made of
+	 * such expressions draws an image mirrored in the real axis.
+	 */
+	abstract boolean commutesWithConjugate();
+
+	static final class Constant extends Expression {
+		private final BigDecimal re;
+		private final BigDecimal im;
+
+		Constant(BigDecimal re, BigDecimal im) {
+			this.re = re;
+			this.im = im;
+		}
+
+		@Override
+		Complex write(KernelWriter writer, Complex z, Complex c) {
+			return writer.constant(re, im);
+		}
+
+		@Override
+		int degree() {
+			return 0;
+		}
+
+		@Override
+		boolean commutesWithConjugate() {
+			return im.signum() == 0;
+		}
+	}
+
+	static final class Variable extends Expression {
+		private final boolean isZ;
+
+		Variable(boolean isZ) {
+			this.isZ = isZ;
+		}
+
+		@Override
+		Complex write(KernelWriter writer, Complex z, Complex c) {
+			return isZ ? z : c;
+		}
+
+		@Override
+		int degree() {
+			return isZ ? 1 : 0;
+		}
+
+		@Override
+		boolean commutesWithConjugate() {
+			return true;
+		}
+	}
+
+	static final class Negate extends Expression {
+		private final Expression operand;
+
+		Negate(Expression operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		Complex write(KernelWriter writer, Complex z, Complex c) {
+			Complex value = operand.write(writer, z, c);
+			return new Complex(writer.negate(value.re), writer.negate(value.im));
+		}
+
+		@Override
+		int degree() {
+			return operand.degree();
+		}
+
+		@Override
+		boolean commutesWithConjugate() {
+			return operand.commutesWithConjugate();
+		}
+	}
+
+	static final class Binary extends Expression {
+		private final char operator;
+		private final Expression left;
+		private final Expression right;
+
+		Binary(char operator, Expression left, Expression right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Complex write(KernelWriter writer, Complex z, Complex c) {
+			Complex a = left.write(writer, z, c);
+			Complex b = right.write(writer, z, c);
+			switch (operator) {
+			case '+':
+				return new Complex(writer.add(a.re, b.re), writer.add(a.im, b.im));
+			case '-':
+				return new Complex(writer.subtract(a.re, b.re), writer.subtract(a.im, b.im));
+			case '*':
+				return writer.multiply(a, b);
+			default:
+				if (b.im.is(0)) {
+					return new Complex(writer.divide(a.re, b.re), writer.divide(a.im, b.re));
+				}
+				Real denominator = writer.add(writer.multiply(b.re, b.re), writer.multiply(b.im, b.im));
+				Real re = writer.add(writer.multiply(a.re, b.re), writer.multiply(a.im, b.im));
+				Real im = writer.subtract(writer.multiply(a.im, b.re), writer.multiply(a.re, b.im));
+				return new Complex(writer.divide(re, denominator), writer.divide(im, denominator));
+			}
+		}
+
+		@Override
+		int degree() {
+			switch (operator) {
+			case '+':
+			case '-':
+				return Math.max(left.degree(), right.degree());
+			case '*':
+				return left.degree() + right.degree();
+			default:
+				return Math.max(0, left.degree() - right.degree());
+			}
+		}
+
+		@Override
+		boolean commutesWithConjugate() {
+			return left.commutesWithConjugate() && right.commutesWithConjugate();
+		}
+	}
+
+	static final class Power extends Expression {
+		private final Expression base;
+		private final int exponent;
+
+		Power(Expression base, int exponent) {
+			this.base = base;
+			this.exponent = exponent;
+		}
+
+		@Override
+		Complex write(KernelWriter writer, Complex z, Complex c) {
+			Complex square = base.write(writer, z, c);
+			Complex result = null;
+			for (int n = exponent; n > 0; n >>= 1) {
+				if ((n & 1) != 0) {
+					result = result == null ? square : writer.multiply(result, square);
+				}
+				if (n > 1) {
+					square = writer.square(square);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		int degree() {
+			return base.degree() * exponent;
+		}
+
+		@Override
+		boolean commutesWithConjugate() {
+			return base.commutesWithConjugate();
+		}
+	}
+
+	static final class Function extends Expression {
+		private final String name;
+		private final Expression argument;
+
+		Function(String name, Expression argument) {
+			this.name = name;
+			this.argument = argument;
+		}
+
+		@Override
+		Complex write(KernelWriter writer, Complex z, Complex c) {
+			Complex value = argument.write(writer, z, c);
+			Complex zero = writer.constant(BigDecimal.ZERO, BigDecimal.ZERO);
+			switch (name) {
+			case "re":
+				return new Complex(value.re, zero.im);
+			case "im":
+				return new Complex(value.im, zero.im);
+			case "conj":
+				return new Complex(value.re, writer.negate(value.im));
+			default:
+				if (value.im.is(0)) {
+					return new Complex(writer.abs(value.re), zero.im);
+				}
+				Real norm = writer.add(writer.multiply(value.re, value.re), writer.multiply(value.im, value.im));
+				return new Complex(writer.sqrt(norm), zero.im);
+			}
+		}
+
+		@Override
+		int degree() {
+			return argument.degree();
+		}
+
+		@Override
+		boolean commutesWithConjugate() {
+			// im(conj(w)) is -im(w), while re, conj and abs keep the symmetry
+			return !name.equals("im") && argument.commutesWithConjugate();
+		}
+	}
+}
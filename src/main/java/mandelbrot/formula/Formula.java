@@ -0,0 +1,136 @@
+package mandelbrot.formula;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An escape-time iteration z -> f(z, c), where c is the pixel and z starts at a
+ * value that may depend on c. Formulas are compiled into a {@link Kernel} the first
+ * time they are rendered, and compiled kernels are shared by equal formulas.
+ */
+public final class Formula {
+	public static final Formula MANDELBROT = new Formula("Mandelbrot", "z^2 + c", "0", true, new MandelbrotKernel());
+
+	private static final List<Formula> PRESETS = Arrays.asList(MANDELBROT,
+			new Formula("Multibrot 3", "z^3 + c", "0", true, null),
+			new Formula("Burning Ship", "(abs(re(z)) + i*abs(im(z)))^2 + c", "0", false, null),
+			new Formula("Julia", "z^2 + (-0.8 + 0.156i)", "c", true, null));
+
+	private static final AtomicInteger classes = new AtomicInteger();
+	private static final Map<String, Kernel> kernels = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final String iteration;
+	private final String start;
+	private final int degree;
+	private final boolean fullSet;
+	private final Expression iterationExpression;
+	private final Expression startExpression;
+	private volatile Kernel kernel;
+
+	private Formula(String name, String iteration, String start, boolean fullSet, Kernel kernel) {
+		this.name = name;
+		this.iteration = iteration;
+		this.start = start;
+		this.fullSet = fullSet;
+		this.iterationExpression = Parser.parse(iteration, true);
+		this.startExpression = Parser.parse(start, false);
+		this.degree = Math.max(2, iterationExpression.degree());
+		this.kernel = kernel;
+	}
+
+	/**
+	 * @param iteration the next value of z, in terms of z and c
+	 * @param start     the first value of z, in terms of c
+	 * @throws IllegalArgumentException if either expression is not a valid formula
+	 */
+	public static Formula parse(String iteration, String start) {
+		for (Formula preset : presets()) {
+			if (preset.iteration.equals(iteration.trim()) && preset.start.equals(start.trim())) {
+				return preset;
+			}
+		}
+		return new Formula("Custom", iteration.trim(), start.trim(), false, null);
+	}
+
+	public static List<Formula> presets() {
+		return PRESETS;
+	}
+
+	/**
+	 * Compiles the formula on first use, which takes a moment, so callers should
+	 * not be on the UI thread.
+	 */
+	public Kernel kernel() {
+		Kernel compiled = kernel;
+		if (compiled == null) {
+			compiled = kernels.computeIfAbsent(start + ";" + iteration, key -> {
+				String className = "Kernel" + classes.incrementAndGet();
+				try {
+					return KernelCompiler.compile(className, source(className));
+				} catch (NoClassDefFoundError e) {
+					// A runtime without the java.compiler module cannot even load the compiler
+					throw new IllegalStateException("Compiling formulas needs a JDK, not just a JRE", e);
+				}
+			});
+			kernel = compiled;
+		}
+		return compiled;
+	}
+
+	String source(String className) {
+		return KernelWriter.write(className, iterationExpression, startExpression, degree);
+	}
+
+	/**
+	 * Whether the image is mirrored in the real axis, as it is when conjugating c
+	 * conjugates every z of the iteration.
+	 */
+	public boolean isConjugateSymmetric() {
+		return iterationExpression.commutesWithConjugate() && startExpression.commutesWithConjugate();
+	}
+
+	/**
+	 * Whether the points that do not escape enclose no points that do, so that
+	 * whatever an edge of the set encloses can be filled without iterating it. This
+	 * holds for the polynomial presets, but not for the Burning Ship or for custom
+	 * formulas in general.
+	 */
+	public boolean hasFullSet() {
+		return fullSet;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getIteration() {
+		return iteration;
+	}
+
+	public String getStart() {
+		return start;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Formula)) {
+			return false;
+		}
+		Formula other = (Formula) obj;
+		return iteration.equals(other.iteration) && start.equals(other.start);
+	}
+
+	@Override
+	public int hashCode() {
+		return iteration.hashCode() * 31 + start.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
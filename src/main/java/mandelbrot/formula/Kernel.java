@@ -0,0 +1,43 @@
+package mandelbrot.formula;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Iterates a single point of an escape-time fractal.
+ */
+public interface Kernel {
+
+	/**
+	 * The result for a point that did not escape within maxIter iterations. Every
+	 * other result is a smoothed iteration count of at least 0.
+	 */
+	double NOT_ESCAPED = -1;
+
+	/**
+	 * @return the smoothed iteration count at which the point escaped, or
+	 *         {@link #NOT_ESCAPED}. A point whose z overflows or becomes undefined,
+	 *         as at a pole, escapes at that iteration.
+	 */
+	double iterate(double cr, double ci, int maxIter, double infThresh);
+
+	/**
+	 * @return the smoothed iteration count at which the point escaped, or
+	 *         {@link #NOT_ESCAPED}. A point whose z overflows or becomes undefined,
+	 *         as at a pole, escapes at that iteration.
+	 */
+	double iterate(BigDecimal cr, BigDecimal ci, int maxIter, BigDecimal infThresh, MathContext mathContext);
+
+	/**
+	 * Smooths the count of a point that escaped after iter iterations with the given
+	 * |z|^2. For an infinite or undefined |z|^2 the count is left unsmoothed, and as
+	 * the correction takes points far out of the set below 0, it is clamped there.
+	 */
+	static double escapeCount(int iter, double norm, double invLogDegree) {
+		if (!(norm > 1 && norm < Double.POSITIVE_INFINITY)) {
+			return iter;
+		}
+		double count = iter + 1 - Math.log((Math.log(norm) * 0.5) * MandelbrotKernel.INV_LOG_2) * invLogDegree;
+		return Math.max(0, count);
+	}
+}
@@ -0,0 +1,100 @@
+package mandelbrot.formula;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles generated kernel source in memory with the JDK's compiler and loads it
+ * into its own class loader.
+ */
+final class KernelCompiler {
+
+	private KernelCompiler() {
+	}
+
+	static Kernel compile(String className, String source) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new IllegalStateException("Compiling formulas needs a JDK, not just a JRE");
+		}
+
+		Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+		JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+				compiler.getStandardFileManager(null, null, null)) {
+
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String name, Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension),
+						kind) {
+
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						classes.put(name, bytes);
+						return bytes;
+					}
+				};
+			}
+		};
+		JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className + Kind.SOURCE.extension),
+				Kind.SOURCE) {
+
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		StringWriter errors = new StringWriter();
+		List<String> options = Arrays.asList("-classpath", classPath(), "-proc:none", "-g:none");
+		if (!compiler.getTask(errors, fileManager, null, options, null, Collections.singletonList(file)).call()) {
+			throw new IllegalStateException("Could not compile formula kernel:\n" + errors + "\n" + source);
+		}
+
+		ClassLoader loader = new ClassLoader(Kernel.class.getClassLoader()) {
+
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException {
+				ByteArrayOutputStream bytes = classes.get(name);
+				if (bytes == null) {
+					throw new ClassNotFoundException(name);
+				}
+				byte[] code = bytes.toByteArray();
+				return defineClass(name, code, 0, code.length);
+			}
+		};
+		try {
+			return (Kernel) loader.loadClass(className).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not load formula kernel " + className, e);
+		}
+	}
+
+	private static String classPath() {
+		String classPath = System.getProperty("java.class.path");
+		try {
+			String own = new File(Kernel.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+			return classPath.isEmpty() ? own : own + File.pathSeparator + classPath;
+		} catch (URISyntaxException | NullPointerException | SecurityException e) {
+			return classPath;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package mandelbrot.formula;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the Java source of a {@link Kernel} for a parsed formula. Complex values
+ * are split into real and imaginary parts, constants are folded and every
+ * intermediate result goes into its own local, so the generated loop is plain
+ * arithmetic on locals that the JIT treats like a hand-written kernel.
+ */
+final class KernelWriter {
+
+	/**
+	 * A real value: either a constant or the name of a local or parameter.
+	 */
+	static final class Real {
+		final BigDecimal constant;
+		final String name;
+
+		private Real(BigDecimal constant, String name) {
+			this.constant = constant;
+			this.name = name;
+		}
+
+		boolean is(int value) {
+			return constant != null && constant.compareTo(BigDecimal.valueOf(value)) == 0;
+		}
+	}
+
+	/**
+	 * A complex value as its real and imaginary parts.
+	 */
+	static final class Complex {
+		final Real re;
+		final Real im;
+
+		Complex(Real re, Real im) {
+			this.re = re;
+			this.im = im;
+		}
+	}
+
+	private final boolean arbitrary;
+	private final List<BigDecimal> constants;
+	private final Map<String, Real> products = new HashMap<>();
+	private StringBuilder statements = new StringBuilder();
+	private int temps;
+
+	private KernelWriter(boolean arbitrary, List<BigDecimal> constants) {
+		this.arbitrary = arbitrary;
+		this.constants = constants;
+	}
+
+	static String write(String className, Expression iteration, Expression start, int degree) {
+		List<BigDecimal> constants = new ArrayList<>();
+		String doubleMethod = new KernelWriter(false, constants).writeMethod(iteration, start);
+		String arbitraryMethod = new KernelWriter(true, constants).writeMethod(iteration, start);
+
+		StringBuilder source = new StringBuilder();
+		source.append("import java.math.BigDecimal;\n");
+		source.append("import java.math.MathContext;\n\n");
+		source.append("import ").append(Kernel.class.getName()).append(";\n\n");
+		source.append("public final class ").append(className).append(" implements Kernel {\n");
+		source.append("\tprivate static final double INV_LOG_DEGREE = 1.0 / Math.log(").append(degree)
+				.append(");\n");
+		for (int i = 0; i < constants.size(); i++) {
+			source.append("\tprivate static final BigDecimal K").append(i).append(" = new BigDecimal(\"")
+					.append(constants.get(i).toString()).append("\");\n");
+		}
+		source.append(doubleMethod);
+		source.append(arbitraryMethod);
+		source.append("}\n");
+		return source.toString();
+	}
+
+	private String writeMethod(Expression iteration, Expression start) {
+		String type = arbitrary ? "BigDecimal" : "double";
+		StringBuilder method = new StringBuilder();
+		if (arbitrary) {
+			method.append("\tpublic double iterate(BigDecimal cr, BigDecimal ci, int maxIter, BigDecimal infThresh, ")
+					.append("MathContext mc) {\n");
+		} else {
+			method.append("\tpublic double iterate(double cr, double ci, int maxIter, double infThresh) {\n");
+		}
+		method.append("\t\tint iter = 0;\n");
+
+		StringBuilder body = new StringBuilder();
+		Complex c = variable("cr", "ci");
+		Complex z0 = start.write(this, null, c);
+		body.append(takeStatements(2));
+		body.append("\t\t").append(type).append(" zr = ").append(code(z0.re)).append(";\n");
+		body.append("\t\t").append(type).append(" zi = ").append(code(z0.im)).append(";\n");
+		appendSquares(body, type + " ", 2);
+		body.append("\t\t").append(type).append(" checkR = zr;\n");
+		body.append("\t\t").append(type).append(" checkI = zi;\n");
+		body.append("\t\tint checkAt = 1;\n");
+		if (arbitrary) {
+			body.append("\t\twhile (norm.compareTo(infThresh) < 0 && iter < maxIter) {\n");
+		} else {
+			body.append("\t\twhile (norm <= infThresh && iter < maxIter) {\n");
+		}
+
+		products.put("zr*zr", new Real(null, "zr2"));
+		products.put("zi*zi", new Real(null, "zi2"));
+		Complex next = iteration.write(this, variable("zr", "zi"), c);
+		products.clear();
+		body.append(takeStatements(3));
+		body.append("\t\t\tzr = ").append(code(next.re)).append(";\n");
+		body.append("\t\t\tzi = ").append(code(next.im)).append(";\n");
+		appendSquares(body, "", 3);
+		body.append("\t\t\titer++;\n\n");
+		if (arbitrary) {
+			body.append("\t\t\tif (zr.compareTo(checkR) == 0 && zi.compareTo(checkI) == 0) {\n");
+		} else {
+			body.append("\t\t\tif (zr == checkR && zi == checkI) {\n");
+		}
+		body.append("\t\t\t\treturn NOT_ESCAPED;\n");
+		body.append("\t\t\t}\n");
+		body.append("\t\t\tif (iter == checkAt) {\n");
+		body.append("\t\t\t\tcheckR = zr;\n");
+		body.append("\t\t\t\tcheckI = zi;\n");
+		body.append("\t\t\t\tcheckAt <<= 1;\n");
+		body.append("\t\t\t}\n");
+		body.append("\t\t}\n\n");
+		body.append("\t\tif (iter < maxIter) {\n");
+		body.append("\t\t\treturn Kernel.escapeCount(iter, norm").append(arbitrary ? ".doubleValue()" : "")
+				.append(", INV_LOG_DEGREE);\n");
+		body.append("\t\t}\n");
+		body.append("\t\treturn NOT_ESCAPED;\n");
+
+		if (arbitrary) {
+			// A division by zero or the root of a negative number, as at a pole, makes
+			// z undefined, which the double kernel treats as escaping
+			method.append("\t\ttry {\n");
+			method.append(body.toString().replace("\n\t", "\n\t\t").replaceFirst("^\t", "\t\t"));
+			method.append("\t\t} catch (ArithmeticException e) {\n");
+			method.append("\t\t\treturn iter;\n");
+			method.append("\t\t}\n");
+		} else {
+			method.append(body);
+		}
+		method.append("\t}\n");
+		return method.toString();
+	}
+
+	/**
+	 * Keeps the squares of z in locals, like the hand-written kernel does, so that
+	 * the escape test and a z^2 in the formula share them.
+	 */
+	private void appendSquares(StringBuilder method, String declaration, int depth) {
+		String indent = depth == 2 ? "\t\t" : "\t\t\t";
+		if (arbitrary) {
+			method.append(indent).append(declaration).append("zr2 = zr.multiply(zr, mc);\n");
+			method.append(indent).append(declaration).append("zi2 = zi.multiply(zi, mc);\n");
+			method.append(indent).append(declaration).append("norm = zr2.add(zi2, mc);\n");
+		} else {
+			method.append(indent).append(declaration).append("zr2 = zr * zr;\n");
+			method.append(indent).append(declaration).append("zi2 = zi * zi;\n");
+			method.append(indent).append(declaration).append("norm = zr2 + zi2;\n");
+		}
+	}
+
+	private String takeStatements(int depth) {
+		String taken = statements.toString();
+		statements = new StringBuilder();
+		return depth == 2 ? taken : taken.replace("\t\t", "\t\t\t");
+	}
+
+	Complex variable(String re, String im) {
+		return new Complex(new Real(null, re), new Real(null, im));
+	}
+
+	Complex constant(BigDecimal re, BigDecimal im) {
+		return new Complex(constant(re), constant(im));
+	}
+
+	private Real constant(BigDecimal value) {
+		return new Real(value, null);
+	}
+
+	Real add(Real a, Real b) {
+		if (a.is(0)) {
+			return b;
+		} else if (b.is(0)) {
+			return a;
+		} else if (a.constant != null && b.constant != null) {
+			return constant(a.constant.add(b.constant));
+		}
+		return temp(arbitrary ? code(a) + ".add(" + code(b) + ", mc)" : code(a) + " + " + code(b));
+	}
+
+	Real subtract(Real a, Real b) {
+		if (b.is(0)) {
+			return a;
+		} else if (a.is(0)) {
+			return negate(b);
+		} else if (a.constant != null && b.constant != null) {
+			return constant(a.constant.subtract(b.constant));
+		}
+		return temp(arbitrary ? code(a) + ".subtract(" + code(b) + ", mc)" : code(a) + " - " + code(b));
+	}
+
+	Real multiply(Real a, Real b) {
+		if (a.name != null && b.name != null) {
+			Real product = products.get(a.name + "*" + b.name);
+			if (product == null) {
+				product = products.get(b.name + "*" + a.name);
+			}
+			if (product == null) {
+				product = temp(arbitrary ? a.name + ".multiply(" + b.name + ", mc)" : a.name + " * " + b.name);
+				products.put(a.name + "*" + b.name, product);
+			}
+			return product;
+		} else if (a.is(0) || b.is(0)) {
+			return constant(BigDecimal.ZERO);
+		} else if (a.is(1)) {
+			return b;
+		} else if (b.is(1)) {
+			return a;
+		} else if (a.is(-1)) {
+			return negate(b);
+		} else if (b.is(-1)) {
+			return negate(a);
+		} else if (a.constant != null && b.constant != null) {
+			return constant(a.constant.multiply(b.constant));
+		}
+		return temp(arbitrary ? code(a) + ".multiply(" + code(b) + ", mc)" : code(a) + " * " + code(b));
+	}
+
+	Real divide(Real a, Real b) {
+		if (a.is(0)) {
+			return a;
+		} else if (b.is(1)) {
+			return a;
+		} else if (a.constant != null && b.constant != null && b.constant.signum() != 0) {
+			return constant(a.constant.divide(b.constant, MathContext.DECIMAL128));
+		}
+		return temp(arbitrary ? code(a) + ".divide(" + code(b) + ", mc)" : code(a) + " / " + code(b));
+	}
+
+	Real negate(Real a) {
+		if (a.constant != null) {
+			return constant(a.constant.negate());
+		}
+		return temp(arbitrary ? code(a) + ".negate()" : "-" + code(a));
+	}
+
+	Real abs(Real a) {
+		if (a.constant != null) {
+			return constant(a.constant.abs());
+		}
+		return temp(arbitrary ? code(a) + ".abs()" : "Math.abs(" + code(a) + ")");
+	}
+
+	Real sqrt(Real a) {
+		if (a.constant != null && a.constant.signum() >= 0) {
+			return constant(a.constant.sqrt(MathContext.DECIMAL128));
+		}
+		return temp(arbitrary ? code(a) + ".sqrt(mc)" : "Math.sqrt(" + code(a) + ")");
+	}
+
+	Complex square(Complex a) {
+		Real re = subtract(multiply(a.re, a.re), multiply(a.im, a.im));
+		Real im = multiply(add(a.re, a.re), a.im);
+		return new Complex(re, im);
+	}
+
+	Complex multiply(Complex a, Complex b) {
+		Real re = subtract(multiply(a.re, b.re), multiply(a.im, b.im));
+		Real im = add(multiply(a.re, b.im), multiply(a.im, b.re));
+		return new Complex(re, im);
+	}
+
+	private Real temp(String expression) {
+		String name = "t" + temps++;
+		statements.append("\t\t").append(arbitrary ? "BigDecimal " : "double ").append(name).append(" = ")
+				.append(expression).append(";\n");
+		return new Real(null, name);
+	}
+
+	private String code(Real a) {
+		if (a.name != null) {
+			return a.name;
+		} else if (arbitrary) {
+			int index = constants.indexOf(a.constant);
+			if (index < 0) {
+				index = constants.size();
+				constants.add(a.constant);
+			}
+			return "K" + index;
+		} else {
+			// A constant beyond the range of a double is as infinite there as the
+			// point it sends z to
+			double value = a.constant.doubleValue();
+			if (Double.isInfinite(value)) {
+				return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+			}
+			return value < 0 ? "(" + value + ")" : Double.toString(value);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package mandelbrot.formula;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * The hand-written z^2 + c kernel. Compiled formulas follow the same structure, so
+ * this is also the reference they are measured against.
+ */
+final class MandelbrotKernel implements Kernel {
+	static final double INV_LOG_2 = 1.0 / Math.log(2);
+
+	@Override
+	public double iterate(double x0, double y0, int maxIter, double infThresh) {
+		double x = 0.0;
+		double y = 0.0;
+		double x2 = 0.0;
+		double y2 = 0.0;
+		double checkX = x;
+		double checkY = y;
+		int checkAt = 1;
+		int iter = 0;
+		while (x2 + y2 <= infThresh && iter < maxIter) {
+			y = (x + x) * y + y0;
+			x = x2 - y2 + x0;
+			x2 = x * x;
+			y2 = y * y;
+			iter++;
+
+			if (x == checkX && y == checkY) {
+				return NOT_ESCAPED;
+			}
+			if (iter == checkAt) {
+				checkX = x;
+				checkY = y;
+				checkAt <<= 1;
+			}
+		}
+
+		if (iter < maxIter) {
+			return Kernel.escapeCount(iter, x2 + y2, INV_LOG_2);
+		}
+		return NOT_ESCAPED;
+	}
+
+	@Override
+	public double iterate(BigDecimal x0, BigDecimal y0, int maxIter, BigDecimal infThresh, MathContext mathContext) {
+		BigDecimal x = BigDecimal.ZERO;
+		BigDecimal y = BigDecimal.ZERO;
+		BigDecimal x2 = BigDecimal.ZERO;
+		BigDecimal y2 = BigDecimal.ZERO;
+		BigDecimal x2PlusY2 = BigDecimal.ZERO;
+		BigDecimal checkX = x;
+		BigDecimal checkY = y;
+		int checkAt = 1;
+		int iter = 0;
+		while (x2PlusY2.compareTo(infThresh) < 0 && iter < maxIter) {
+			y = x.add(x, mathContext).multiply(y, mathContext).add(y0, mathContext);
+			x = x2.subtract(y2, mathContext).add(x0, mathContext);
+			x2 = x.multiply(x, mathContext);
+			y2 = y.multiply(y, mathContext);
+			x2PlusY2 = x2.add(y2, mathContext);
+			iter++;
+
+			if (x.compareTo(checkX) == 0 && y.compareTo(checkY) == 0) {
+				return NOT_ESCAPED;
+			}
+			if (iter == checkAt) {
+				checkX = x;
+				checkY = y;
+				checkAt <<= 1;
+			}
+		}
+
+		if (iter < maxIter) {
+			return Kernel.escapeCount(iter, x2PlusY2.doubleValue(), INV_LOG_2);
+		}
+		return NOT_ESCAPED;
+	}
+}
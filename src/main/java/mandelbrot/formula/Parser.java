@@ -0,0 +1,189 @@
+package mandelbrot.formula;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recursive descent parser for formulas such as {@code z^2 + c} or
+ * {@code (abs(re(z)) + i*abs(im(z)))^2 + c}.
+ *
+ * <pre>
+ * expression := term (('+' | '-') term)*
+ * term       := unary (('*' | '/') unary)*
+ * unary      := '-' unary | power
+ * power      := atom ('^' integer)?
+ * atom       := number 'i'? | 'i' | 'z' | 'c' | function '(' expression ')' | '(' expression ')'
+ * function   := 're' | 'im' | 'abs' | 'conj'
+ * </pre>
+ */
+final class Parser {
+	private static final int MAX_EXPONENT = 64;
+	private static final List<String> FUNCTIONS = Arrays.asList("re", "im", "abs", "conj");
+
+	private final String text;
+	private final boolean allowZ;
+	private int position;
+
+	private Parser(String text, boolean allowZ) {
+		this.text = text;
+		this.allowZ = allowZ;
+	}
+
+	/**
+	 * @param allowZ whether the expression may refer to z, which the start value
+	 *               cannot
+	 * @throws IllegalArgumentException if the text is not a valid formula
+	 */
+	static Expression parse(String text, boolean allowZ) {
+		Parser parser = new Parser(text, allowZ);
+		Expression expression = parser.expression();
+		parser.skipSpaces();
+		if (parser.position < text.length()) {
+			throw parser.error("Unexpected '" + text.charAt(parser.position) + "'");
+		}
+		return expression;
+	}
+
+	private Expression expression() {
+		Expression left = term();
+		while (peek('+') || peek('-')) {
+			char operator = text.charAt(position++);
+			left = new Expression.Binary(operator, left, term());
+		}
+		return left;
+	}
+
+	private Expression term() {
+		Expression left = unary();
+		while (peek('*') || peek('/')) {
+			char operator = text.charAt(position++);
+			left = new Expression.Binary(operator, left, unary());
+		}
+		return left;
+	}
+
+	private Expression unary() {
+		if (peek('-')) {
+			position++;
+			return new Expression.Negate(unary());
+		}
+		return power();
+	}
+
+	private Expression power() {
+		Expression base = atom();
+		if (peek('^')) {
+			position++;
+			skipSpaces();
+			int start = position;
+			while (position < text.length() && Character.isDigit(text.charAt(position))) {
+				position++;
+			}
+			if (start == position) {
+				throw error("Expected a whole exponent");
+			}
+			int exponent = Integer.parseInt(text.substring(start, Math.min(position, start + 3)));
+			if (exponent < 1 || exponent > MAX_EXPONENT) {
+				throw error("Exponent must be between 1 and " + MAX_EXPONENT);
+			}
+			return new Expression.Power(base, exponent);
+		}
+		return base;
+	}
+
+	private Expression atom() {
+		skipSpaces();
+		if (position >= text.length()) {
+			throw error("Unexpected end of formula");
+		}
+		char next = text.charAt(position);
+		if (next == '(') {
+			position++;
+			Expression inner = expression();
+			expect(')');
+			return inner;
+		} else if (Character.isDigit(next) || next == '.') {
+			return number();
+		} else if (Character.isLetter(next)) {
+			int start = position;
+			while (position < text.length() && Character.isLetter(text.charAt(position))) {
+				position++;
+			}
+			String name = text.substring(start, position);
+			if (name.equals("i")) {
+				return new Expression.Constant(BigDecimal.ZERO, BigDecimal.ONE);
+			} else if (name.equals("c")) {
+				return new Expression.Variable(false);
+			} else if (name.equals("z")) {
+				if (!allowZ) {
+					throw error("The start value cannot depend on z");
+				}
+				return new Expression.Variable(true);
+			} else if (FUNCTIONS.contains(name)) {
+				expect('(');
+				Expression argument = expression();
+				expect(')');
+				return new Expression.Function(name, argument);
+			}
+			position = start;
+			throw error("Unknown name '" + name + "'");
+		}
+		throw error("Unexpected '" + next + "'");
+	}
+
+	private Expression number() {
+		int start = position;
+		while (position < text.length() && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.')) {
+			position++;
+		}
+		if (position < text.length() && (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+			int mark = position++;
+			if (position < text.length() && (text.charAt(position) == '+' || text.charAt(position) == '-')) {
+				position++;
+			}
+			if (position < text.length() && Character.isDigit(text.charAt(position))) {
+				while (position < text.length() && Character.isDigit(text.charAt(position))) {
+					position++;
+				}
+			} else {
+				position = mark;
+			}
+		}
+		BigDecimal value;
+		try {
+			value = new BigDecimal(text.substring(start, position));
+		} catch (NumberFormatException e) {
+			position = start;
+			throw error("Invalid number");
+		}
+		if (position < text.length() && text.charAt(position) == 'i'
+				&& (position + 1 == text.length() || !Character.isLetter(text.charAt(position + 1)))) {
+			position++;
+			return new Expression.Constant(BigDecimal.ZERO, value);
+		}
+		return new Expression.Constant(value, BigDecimal.ZERO);
+	}
+
+	private boolean peek(char expected) {
+		skipSpaces();
+		return position < text.length() && text.charAt(position) == expected;
+	}
+
+	private void expect(char expected) {
+		if (!peek(expected)) {
+			throw error("Expected '" + expected + "'");
+		}
+		position++;
+	}
+
+	private void skipSpaces() {
+		while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + (position + 1) + " of '" + text + "'");
+	}
+}
@@ -0,0 +1,40 @@
+package mandelbrot.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Encoded tiles, evicting the least recently used once their total size exceeds
+ * the budget.
+ */
+class TileCache<K> {
+	private final long maxBytes;
+	private final LinkedHashMap<K, byte[]> tiles = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	TileCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	synchronized byte[] get(K key) {
+		return tiles.get(key);
+	}
+
+	synchronized void put(K key, byte[] tile) {
+		byte[] old = tiles.put(key, tile);
+		bytes += tile.length - (old == null ? 0 : old.length);
+		Iterator<byte[]> eldest = tiles.values().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			bytes -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	synchronized int size() {
+		return tiles.size();
+	}
+
+	synchronized long bytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,361 @@
+package mandelbrot.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import mandelbrot.Calculator;
+import mandelbrot.RenderPriority;
+import mandelbrot.Settings;
+import mandelbrot.Snapshot;
+
+/**
+ * Serves the set as slippy-map tiles, {@code /tiles/<z>/<x>/<y>.png}, on the
+ * loopback interface. Zoom level 0 is a single tile covering the start view of the
+ * window and each level halves the tile size, down to where double precision
+ * runs out.
+ * <p>
+ * Concurrent requests for a tile share one render, and finished tiles stay in an
+ * LRU cache up to a byte budget. Renders run at batch priority through a
+ * calculator that cancels the oldest that has not started once too many are
+ * waiting, as those are the tiles a client has most likely scrolled past; their
+ * requests get a 503 and can be retried. The server is not told when a client
+ * hangs up, so a request that has waited longer than the wait limit gets a 503
+ * too, and a render is cancelled once no request is waiting for it.
+ * <p>
+ * Options: {@code --port=<n>} (default 8080, 0 for any free port),
+ * {@code --cache-mb=<n>} (default 64), {@code --queue=<n>} for the renders
+ * waiting to start (default 64), {@code --max-wait-ms=<n>} (default 10000) and
+ * {@code --max-iter=<n>} (default 1000). Run with
+ * {@code gradle tileServer -PtileServerArgs="..."}.
+ */
+public class TileServer {
+	public static final int TILE_SIZE = 256;
+	public static final int MAX_ZOOM = 32;
+	public static final long DEFAULT_MAX_WAIT_MILLIS = 10_000;
+	private static final BigDecimal WORLD_X0 = new BigDecimal("-2.5");
+	private static final BigDecimal WORLD_Y0 = new BigDecimal("-2");
+	private static final BigDecimal WORLD_SIZE = new BigDecimal("4");
+	private static final Pattern TILE_PATH = Pattern.compile("/tiles/(\\d{1,2})/(\\d{1,10})/(\\d{1,10})\\.png");
+
+	static {
+		// Without this the headers and body go out in separate segments and every
+		// response waits for a delayed acknowledgement.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final Settings settings;
+	private final Calculator calculator;
+	private final TileCache<Tile> cache;
+	private final long maxWaitMillis;
+	private final ConcurrentHashMap<Tile, PendingTile> rendering = new ConcurrentHashMap<>();
+	private final ExecutorService handlers = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "tile-server");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final HttpServer server;
+
+	private final AtomicLong renders = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param settings         the settings to render with; the size and scale factor
+	 *                         are overridden to give one pixel per tile pixel
+	 * @param maxQueuedRenders how many renders may wait to start before the oldest
+	 *                         is dropped
+	 */
+	public TileServer(Settings settings, int port, long cacheBytes, int maxQueuedRenders) throws IOException {
+		this(settings, port, cacheBytes, maxQueuedRenders, DEFAULT_MAX_WAIT_MILLIS);
+	}
+
+	/**
+	 * @param maxWaitMillis how long a request waits for its tile before it gets a
+	 *                      503
+	 */
+	public TileServer(Settings settings, int port, long cacheBytes, int maxQueuedRenders, long maxWaitMillis)
+			throws IOException {
+		this.settings = settings.copy();
+		this.settings.width = TILE_SIZE;
+		this.settings.height = TILE_SIZE;
+		this.settings.scaleFactor = 1;
+		this.calculator = new Calculator(maxQueuedRenders);
+		this.cache = new TileCache<>(cacheBytes);
+		this.maxWaitMillis = maxWaitMillis;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/tiles/", this::handle);
+		server.setExecutor(handlers);
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		int port = 8080;
+		long cacheMegabytes = 64;
+		int queue = 64;
+		long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+		Settings settings = new Settings();
+		settings.maxIter = 1000;
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--port=")) {
+				port = Integer.parseInt(value);
+			} else if (arg.startsWith("--cache-mb=")) {
+				cacheMegabytes = Long.parseLong(value);
+			} else if (arg.startsWith("--queue=")) {
+				queue = Integer.parseInt(value);
+			} else if (arg.startsWith("--max-wait-ms=")) {
+				maxWaitMillis = Long.parseLong(value);
+			} else if (arg.startsWith("--max-iter=")) {
+				settings.maxIter = Integer.parseInt(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		settings.regenerateColors();
+
+		TileServer server = new TileServer(settings, port, cacheMegabytes << 20, queue, maxWaitMillis);
+		server.start();
+		System.out.println("Serving tiles at http://localhost:" + server.getPort() + "/tiles/{z}/{x}/{y}.png");
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		handlers.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public long getRenders() {
+		return renders.get();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		Matcher matcher = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+		if (!exchange.getRequestMethod().equals("GET") || !matcher.matches()) {
+			sendText(exchange, 404, "Not found");
+			return;
+		}
+		Tile tile = new Tile(Integer.parseInt(matcher.group(1)), Long.parseLong(matcher.group(2)),
+				Long.parseLong(matcher.group(3)));
+		if (tile.z > MAX_ZOOM || tile.x >= 1L << tile.z || tile.y >= 1L << tile.z) {
+			sendText(exchange, 404, "No such tile");
+			return;
+		}
+
+		byte[] png = cache.get(tile);
+		if (png != null) {
+			cacheHits.incrementAndGet();
+			sendPng(exchange, png);
+			return;
+		}
+		PendingTile pending = tile(tile);
+		// Renders complete on calculator threads, which are not to wait for clients
+		pending.png.copy().orTimeout(maxWaitMillis, TimeUnit.MILLISECONDS).whenCompleteAsync((bytes, e) -> {
+			pending.leave();
+			try {
+				Throwable cause = e != null ? unwrap(e) : null;
+				if (e == null) {
+					sendPng(exchange, bytes);
+				} else if (cause instanceof CancellationException || cause instanceof TimeoutException) {
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendText(exchange, 503, cause instanceof TimeoutException ? "Render timed out" : "Render dropped");
+				} else {
+					cause.printStackTrace();
+					sendText(exchange, 500, "Render failed");
+				}
+			} catch (IOException ioe) {
+				exchange.close();
+			}
+		}, handlers);
+	}
+
+	/**
+	 * Renders a tile, or joins the render already running for it. The caller has
+	 * to {@link PendingTile#leave() leave} the returned tile once it stops waiting.
+	 */
+	private PendingTile tile(Tile tile) {
+		PendingTile pending = new PendingTile();
+		PendingTile running;
+		while ((running = rendering.putIfAbsent(tile, pending)) != null) {
+			if (running.join()) {
+				coalesced.incrementAndGet();
+				return running;
+			}
+			// Everyone waiting for it left and its render is being cancelled
+			rendering.remove(tile, running);
+		}
+		pending.join();
+		// The render that was running may have finished since the cache was checked.
+		byte[] png = cache.get(tile);
+		if (png != null) {
+			rendering.remove(tile, pending);
+			cacheHits.incrementAndGet();
+			pending.png.complete(png);
+			return pending;
+		}
+
+		renders.incrementAndGet();
+		pending.start(calculator.submit(snapshot(tile), RenderPriority.BATCH))
+				.thenApplyAsync(snapshot -> encode(snapshot.image), handlers).whenComplete((bytes, e) -> {
+					if (e == null) {
+						cache.put(tile, bytes);
+					} else if (unwrap(e) instanceof CancellationException) {
+						dropped.incrementAndGet();
+					}
+					rendering.remove(tile, pending);
+					if (e == null) {
+						pending.png.complete(bytes);
+					} else {
+						pending.png.completeExceptionally(unwrap(e));
+					}
+				});
+		return pending;
+	}
+
+	private Snapshot snapshot(Tile tile) {
+		BigDecimal size = WORLD_SIZE.divide(BigDecimal.valueOf(2).pow(tile.z));
+		BigDecimal x0 = WORLD_X0.add(size.multiply(BigDecimal.valueOf(tile.x)));
+		BigDecimal y0 = WORLD_Y0.add(size.multiply(BigDecimal.valueOf(tile.y)));
+		return new Snapshot(settings, new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB), x0, y0,
+				x0.add(size), y0.add(size));
+	}
+
+	private static byte[] encode(BufferedImage image) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(image, "png", out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+	}
+
+	private static void sendPng(HttpExchange exchange, byte[] png) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "image/png");
+		exchange.getResponseHeaders().set("Cache-Control", "public, max-age=86400");
+		send(exchange, 200, png);
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		send(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * A tile being rendered and the number of requests waiting for it. Its render is
+	 * cancelled once the last of them leaves before it is done.
+	 */
+	private static final class PendingTile {
+		final CompletableFuture<byte[]> png = new CompletableFuture<>();
+		private CompletableFuture<Snapshot> render;
+		private int waiters;
+		private boolean abandoned;
+
+		/**
+		 * @return false if every request has already left and the render is being
+		 *         cancelled
+		 */
+		synchronized boolean join() {
+			if (abandoned) {
+				return false;
+			}
+			waiters++;
+			return true;
+		}
+
+		synchronized void leave() {
+			if (--waiters == 0 && !png.isDone()) {
+				abandoned = true;
+				if (render != null) {
+					render.cancel(false);
+				}
+			}
+		}
+
+		synchronized CompletableFuture<Snapshot> start(CompletableFuture<Snapshot> render) {
+			this.render = render;
+			return render;
+		}
+	}
+
+	private static final class Tile {
+		final int z;
+		final long x;
+		final long y;
+
+		Tile(int z, long x, long y) {
+			this.z = z;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Tile)) {
+				return false;
+			}
+			Tile other = (Tile) obj;
+			return z == other.z && x == other.x && y == other.y;
+		}
+
+		@Override
+		public int hashCode() {
+			return (Long.hashCode(x) * 31 + Long.hashCode(y)) * 31 + z;
+		}
+	}
+}
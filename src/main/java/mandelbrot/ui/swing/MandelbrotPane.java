@@ -18,6 +18,14 @@ import mandelbrot.SnapshotProvider;
 
 public class MandelbrotPane extends JPanel {
 
+	private static final int TICK_MS = 50;
+
+	/**
+	 * How long the cursor has to rest before the view it would zoom into is rendered
+	 * speculatively, as every speculative snapshot allocates a full set of buffers.
+	 */
+	private static final int SPECULATION_DELAY_MS = 250;
+
 	private final Settings settings;
 
 	private final SnapshotProvider snapshotProvider;
@@ -28,6 +36,20 @@ public class MandelbrotPane extends JPanel {
 
 	private boolean showMouse;
 
+	private int lastMouseX;
+
+	private int lastMouseY;
+
+	private int restingMs;
+
+	private int dragStartX;
+
+	private int dragStartY;
+
+	private boolean dragging;
+
+	private boolean dragged;
+
 	MandelbrotPane(Settings settings, SnapshotProvider snapshotProvider) {
 		this.settings = settings;
 		this.snapshotProvider = snapshotProvider;
@@ -39,6 +61,15 @@ public class MandelbrotPane extends JPanel {
 				mouseX = e.getX();
 				mouseY = e.getY();
 			}
+
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				showMouse = false;
+				dragging = true;
+				mouseX = e.getX();
+				mouseY = e.getY();
+				repaint();
+			}
 		});
 
 		addMouseListener(new MouseAdapter() {
@@ -46,11 +77,33 @@ public class MandelbrotPane extends JPanel {
 			@Override
 			public void mouseExited(MouseEvent e) {
 				showMouse = false;
+				snapshotProvider.cancelSpeculation();
 				repaint();
 			}
 
+			@Override
+			public void mousePressed(MouseEvent e) {
+				dragged = false;
+				dragStartX = e.getX();
+				dragStartY = e.getY();
+			}
+
+			@Override
+			public void mouseReleased(MouseEvent e) {
+				if (dragging) {
+					snapshotProvider.pan((dragStartX - e.getX()) * settings.scaleFactor,
+							(dragStartY - e.getY()) * settings.scaleFactor);
+					dragging = false;
+					dragged = true;
+					repaint();
+				}
+			}
+
 			@Override
 			public void mouseClicked(MouseEvent e) {
+				if (dragged) {
+					return;
+				}
 				if (e.getButton() == MouseEvent.BUTTON1) {
 					snapshotProvider.zoomIn(mouseX * settings.scaleFactor, mouseY * settings.scaleFactor);
 				} else if (e.getButton() == MouseEvent.BUTTON3) {
@@ -60,10 +113,20 @@ public class MandelbrotPane extends JPanel {
 			}
 		});
 
-		new Timer(50, new ActionListener() {
+		new Timer(TICK_MS, new ActionListener() {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
+				if (showMouse && mouseX == lastMouseX && mouseY == lastMouseY) {
+					restingMs += TICK_MS;
+					if (restingMs >= SPECULATION_DELAY_MS) {
+						snapshotProvider.speculate(mouseX * settings.scaleFactor, mouseY * settings.scaleFactor);
+					}
+				} else {
+					restingMs = 0;
+				}
+				lastMouseX = mouseX;
+				lastMouseY = mouseY;
 				repaint();
 			}
 		}).start();
@@ -80,8 +143,16 @@ public class MandelbrotPane extends JPanel {
 
 		Snapshot currentSnapshot = snapshotProvider.getSnapshot();
 		if (currentSnapshot != null) {
-			g.drawImage(currentSnapshot.image.getScaledInstance(settings.width, settings.height, Image.SCALE_SMOOTH), 0,
-					0, null);
+			int offsetX = dragging ? mouseX - dragStartX : 0;
+			int offsetY = dragging ? mouseY - dragStartY : 0;
+			g.drawImage(currentSnapshot.image.getScaledInstance(settings.width, settings.height, Image.SCALE_SMOOTH),
+					offsetX, offsetY, null);
+			Throwable failure = currentSnapshot.getFailure();
+			if (failure != null) {
+				g.setColor(Color.RED);
+				String message = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+				g.drawString("Render failed: " + message.lines().findFirst().orElse(""), 8, 20);
+			}
 		} else {
 			g.setColor(Color.BLACK);
 			g.fillRect(0, 0, settings.width, settings.height);
@@ -8,10 +8,12 @@ import java.math.MathContext;
 import java.math.RoundingMode;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
@@ -26,6 +28,7 @@ import javax.swing.event.DocumentListener;
 
 import mandelbrot.Settings;
 import mandelbrot.SnapshotProvider;
+import mandelbrot.formula.Formula;
 
 public class SettingsPane extends JPanel {
 
@@ -49,6 +52,7 @@ public class SettingsPane extends JPanel {
 		setLayout(new GridLayout(0, 1));
 		addResolutionButtons();
 		addScalingButtons();
+		addFormulaControls();
 		addPrecisionControls();
 		addIterControls();
 		addColorControls();
@@ -85,6 +89,7 @@ public class SettingsPane extends JPanel {
 		ActionListener listener = e -> {
 			int scale = Integer.parseInt(e.getActionCommand());
 			settings.scaleFactor = scale;
+			settings.adaptiveSmoothing = false;
 		};
 		ButtonGroup group = new ButtonGroup();
 		for (String scale : new String[] { SCALE_1, SCALE_2, SCALE_3 }) {
@@ -97,6 +102,96 @@ public class SettingsPane extends JPanel {
 			group.add(scaleBtn);
 			add(scaleBtn);
 		}
+
+		JRadioButton adaptiveBtn = new JRadioButton("adaptive");
+		adaptiveBtn.setToolTipText("Extra samples only where neighbouring pixels differ");
+		adaptiveBtn.addActionListener(e -> {
+			settings.scaleFactor = 1;
+			settings.adaptiveSmoothing = true;
+		});
+		group.add(adaptiveBtn);
+		add(adaptiveBtn);
+	}
+
+	private void addFormulaControls() {
+		JLabel formulaLabel = new JLabel("Formula");
+		formulaLabel.setBorder(new EmptyBorder(4, 4, 4, 4));
+		add(formulaLabel);
+
+		JTextField iterationField = new JTextField(settings.formula.getIteration());
+		iterationField.setToolTipText("Next value of z");
+		JTextField startField = new JTextField(settings.formula.getStart());
+		startField.setToolTipText("Start value of z");
+
+		JComboBox<Formula> presetBox = new JComboBox<>(Formula.presets().toArray(new Formula[0]));
+		presetBox.setSelectedItem(settings.formula);
+		presetBox.addActionListener(e -> {
+			Formula preset = (Formula) presetBox.getSelectedItem();
+			iterationField.setText(preset.getIteration());
+			startField.setText(preset.getStart());
+		});
+
+		DocumentListener listener = new DocumentListener() {
+
+			private void update() {
+				Color foreground;
+				try {
+					Formula formula = Formula.parse(iterationField.getText(), startField.getText());
+					settings.formula = formula;
+					compile(formula);
+					foreground = Color.BLACK;
+				} catch (IllegalArgumentException ex) {
+					foreground = Color.RED;
+				}
+				setForeground(foreground);
+			}
+
+			private void setForeground(Color foreground) {
+				iterationField.setForeground(foreground);
+				startField.setForeground(foreground);
+			}
+
+			/**
+			 * Compiles the kernel off the event thread, so that the next render does not
+			 * wait for it, and marks the formula invalid if it does not compile.
+			 */
+			private void compile(Formula formula) {
+				CompletableFuture.runAsync(() -> {
+					if (settings.formula == formula) {
+						formula.kernel();
+					}
+				}).whenComplete((v, e) -> {
+					if (e != null) {
+						e.printStackTrace();
+						SwingUtilities.invokeLater(() -> {
+							if (settings.formula == formula) {
+								setForeground(Color.RED);
+							}
+						});
+					}
+				});
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				update();
+			}
+
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				update();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				update();
+			}
+		};
+		iterationField.getDocument().addDocumentListener(listener);
+		startField.getDocument().addDocumentListener(listener);
+		add(presetBox);
+		add(iterationField);
+		add(startField);
 	}
 
 	private void addPrecisionControls() {
@@ -158,6 +253,27 @@ public class SettingsPane extends JPanel {
 	}
 
 	private void addColorControls() {
+		JLabel modeLabel = new JLabel("Coloring");
+		modeLabel.setBorder(new EmptyBorder(4, 4, 4, 4));
+		add(modeLabel);
+
+		ButtonGroup group = new ButtonGroup();
+		JRadioButton bandsBtn = new JRadioButton("bands");
+		bandsBtn.setSelected(!settings.histogramColoring);
+		bandsBtn.addActionListener(e -> {
+			settings.histogramColoring = false;
+		});
+		group.add(bandsBtn);
+		add(bandsBtn);
+
+		JRadioButton histogramBtn = new JRadioButton("histogram");
+		histogramBtn.setSelected(settings.histogramColoring);
+		histogramBtn.addActionListener(e -> {
+			settings.histogramColoring = true;
+		});
+		group.add(histogramBtn);
+		add(histogramBtn);
+
 		JLabel thickLabel = new JLabel("Color Width");
 		thickLabel.setBorder(new EmptyBorder(4, 4, 4, 4));
 		add(thickLabel);